@@ -0,0 +1,82 @@
+#!/usr/bin/env python3
+
+from __future__ import print_function
+
+from os import listdir
+from os.path import dirname, join, realpath, splitext
+from subprocess import Popen, PIPE
+
+import sys
+import time
+
+
+REPO_DIR = dirname(realpath(__file__))
+BENCH_DIR = join(REPO_DIR, 'bench')
+ENGINES = ['tree', 'closure', 'vm', 'flat']
+RUNS = 3
+
+
+def run(engine, path, alloc):
+    """
+    Runs the benchmark at [path] on [engine] and returns the best wall clock
+    time in seconds, or the bytes allocated if [alloc] is set, along with the
+    last line of output.
+    """
+    best = None
+    result = ''
+    for _ in range(RUNS):
+        args = [join(REPO_DIR, 'jlox'), '--engine=' + engine, path]
+        if alloc:
+            args.insert(1, '--alloc-stats')
+        start = time.time()
+        proc = Popen(args, stdin=PIPE, stdout=PIPE, stderr=PIPE)
+        out, err = proc.communicate()
+        elapsed = time.time() - start
+
+        if proc.returncode != 0:
+            print('{0} failed on {1}:'.format(engine, path))
+            print(err.decode('utf-8'))
+            sys.exit(1)
+
+        lines = out.decode('utf-8').splitlines()
+        result = lines[-1] if lines else ''
+        if alloc:
+            elapsed = int(err.decode('utf-8').split()[-3])
+        if best is None or elapsed < best:
+            best = elapsed
+    return best, result
+
+
+def main(argv):
+    alloc = '--alloc' in argv
+    engines = [arg for arg in argv[1:] if arg != '--alloc'] or ENGINES
+    for engine in engines:
+        if engine not in ENGINES:
+            print('Usage: bench.py [--alloc] [{0}]...'.format('|'.join(ENGINES)))
+            sys.exit(1)
+
+    print('{0:<16}'.format('benchmark') + ''.join('{0:>10}'.format(e) for e in engines))
+    for name in sorted(listdir(BENCH_DIR)):
+        if splitext(name)[1] != '.lox':
+            continue
+
+        path = join(BENCH_DIR, name)
+        times = []
+        expected = None
+        for engine in engines:
+            elapsed, result = run(engine, path, alloc)
+            if expected is not None and result != expected:
+                print('{0} printed "{1}" but expected "{2}".'.format(engine, result, expected))
+                sys.exit(1)
+            expected = result
+            times.append(elapsed)
+
+        if alloc:
+            cells = ['{0:>8.1f}MB'.format(t / 1e6) for t in times]
+        else:
+            cells = ['{0:>9.2f}s'.format(t) for t in times]
+        print('{0:<16}'.format(splitext(name)[0]) + ''.join(cells))
+
+
+if __name__ == '__main__':
+    main(sys.argv)
@@ -0,0 +1,121 @@
+#!/usr/bin/env python3
+
+from __future__ import print_function
+
+from os.path import dirname, join, realpath
+from subprocess import Popen, PIPE
+
+import os
+import random
+import re
+import sys
+import tempfile
+
+
+REPO_DIR = dirname(realpath(__file__))
+ENGINES = ['tree', 'flat']
+RUNS = 3
+DEFAULT_MEGABYTES = 8
+
+STATS_RE = re.compile(r'(\d+) tokens, scanned in ([\d.]+) ms, parsed in ([\d.]+) ms')
+
+BINARY = ['+', '-', '*', '/', '<', '<=', '>', '>=', '==', '!=', 'and', 'or']
+
+
+def expression(rng, depth):
+    """
+    Returns a random expression nested up to [depth] operators deep, mixing
+    literals, variables, calls, property gets and every operator.
+    """
+    if depth == 0:
+        return rng.choice([
+            str(rng.randint(0, 999)),
+            '"s{0}"'.format(rng.randint(0, 99)),
+            'nil', 'true', 'a', 'b', 'obj.field',
+        ])
+    kind = rng.randint(0, 9)
+    if kind < 6:
+        return '{0} {1} {2}'.format(expression(rng, depth - 1), rng.choice(BINARY),
+                                    expression(rng, depth - 1))
+    if kind == 6:
+        return '({0})'.format(expression(rng, depth - 1))
+    if kind == 7:
+        return rng.choice(['-', '!']) + expression(rng, 0)
+    if kind == 8:
+        return 'f({0}, {1})'.format(expression(rng, depth - 1), expression(rng, 0))
+    return 'obj.method({0}).field'.format(expression(rng, depth - 1))
+
+
+def generate(path, megabytes):
+    """
+    Writes a script of about [megabytes] of functions and classes that are
+    declared but never called, so running it is mostly loading it.
+    """
+    rng = random.Random(42)
+    size = 0
+    index = 0
+    with open(path, 'w') as out:
+        out.write('class Base {}\n')
+        while size < megabytes * 1000000:
+            if index % 10 == 9:
+                chunk = ('class C{0} < Base {{ init(a) {{ this.field = {1}; }} '
+                         'method(a, b) {{ return {2}; }} }}\n').format(
+                    index, expression(rng, 2), expression(rng, 3))
+            else:
+                chunk = ('fun g{0}(a, b, obj) {{ var c = {1}; if ({2}) {{ c = {3}; }} '
+                         'while ({4}) {{ obj.field = {5}; }} return {6}; }}\n').format(
+                    index, expression(rng, 3), expression(rng, 2), expression(rng, 3),
+                    expression(rng, 2), expression(rng, 3), expression(rng, 4))
+            out.write(chunk)
+            size += len(chunk)
+            index += 1
+
+
+def run(engine, path):
+    """
+    Loads the script at [path] on [engine] and returns the token count and
+    the best scanning and parsing times in milliseconds.
+    """
+    best_scan = best_parse = None
+    tokens = 0
+    for _ in range(RUNS):
+        args = [join(REPO_DIR, 'jlox'), '--engine=' + engine, '--parse-stats', path]
+        proc = Popen(args, stdin=PIPE, stdout=PIPE, stderr=PIPE)
+        out, err = proc.communicate()
+        match = STATS_RE.search(err.decode('utf-8'))
+        if proc.returncode != 0 or match is None:
+            print('{0} failed on {1}:'.format(engine, path))
+            print(err.decode('utf-8'))
+            sys.exit(1)
+
+        tokens = int(match.group(1))
+        scan, parse = float(match.group(2)), float(match.group(3))
+        if best_scan is None or scan < best_scan:
+            best_scan = scan
+        if best_parse is None or parse < best_parse:
+            best_parse = parse
+    return tokens, best_scan, best_parse
+
+
+def main(argv):
+    megabytes = DEFAULT_MEGABYTES
+    if len(argv) > 1:
+        if len(argv) > 2 or not argv[1].isdigit():
+            print('Usage: bench_parse.py [megabytes]')
+            sys.exit(1)
+        megabytes = int(argv[1])
+
+    fd, path = tempfile.mkstemp(suffix='.lox')
+    os.close(fd)
+    try:
+        generate(path, megabytes)
+        print('{0:<10}{1:>12}{2:>12}{3:>12}'.format('engine', 'tokens', 'scan', 'parse'))
+        for engine in ENGINES:
+            tokens, scan, parse = run(engine, path)
+            print('{0:<10}{1:>12}{2:>10.1f}ms{3:>10.1f}ms'.format(engine, tokens, scan, parse))
+    finally:
+        os.remove(path)
+
+
+if __name__ == '__main__':
+    main(sys.argv)
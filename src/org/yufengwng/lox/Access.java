@@ -0,0 +1,8 @@
+package org.yufengwng.lox;
+
+// Where the resolver found a variable.
+enum Access {
+    GLOBAL,   // a slot in the globals
+    LOCAL,    // a slot in the running function's frame
+    UPVALUE;  // a value the running closure captured when it was created
+}
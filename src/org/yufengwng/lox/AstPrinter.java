@@ -0,0 +1,209 @@
+package org.yufengwng.lox;
+
+import java.util.List;
+
+// Prints a syntax tree as s-expressions, one top-level statement per line,
+// to see what the optimizer made of a script.
+class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
+
+    void print(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement != null) System.err.println(print(statement));
+        }
+    }
+
+    private String print(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private String print(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private String parenthesize(String name, Object... parts) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(").append(name);
+        for (Object part : parts) {
+            builder.append(" ").append(text(part));
+        }
+        builder.append(")");
+        return builder.toString();
+    }
+
+    private String join(List<?> parts) {
+        StringBuilder builder = new StringBuilder();
+        for (Object part : parts) {
+            if (builder.length() > 0) builder.append(" ");
+            builder.append(text(part));
+        }
+        return builder.toString();
+    }
+
+    private String text(Object part) {
+        if (part instanceof Expr)  return print((Expr) part);
+        if (part instanceof Stmt)  return print((Stmt) part);
+        if (part instanceof Token) return ((Token) part).lexeme();
+        if (part instanceof List)  return join((List<?>) part);
+        return part.toString();
+    }
+
+    @Override
+    public String visitBlockStmt(Stmt.Block stmt) {
+        return parenthesize("block", stmt.statements);
+    }
+
+    @Override
+    public String visitClassStmt(Stmt.Class stmt) {
+        if (stmt.superclass == null) {
+            return parenthesize("class", stmt.name, stmt.methods);
+        }
+        return parenthesize("class", stmt.name, "<", stmt.superclass.name, stmt.methods);
+    }
+
+    @Override
+    public String visitExpressionStmt(Stmt.Expression stmt) {
+        return parenthesize(";", stmt.expression);
+    }
+
+    @Override
+    public String visitForStmt(Stmt.For stmt) {
+        String name = stmt.counted ? "for-counted" : "for";
+        Object initializer = stmt.initializer == null ? "()" : stmt.initializer;
+        Object condition = stmt.condition == null ? "()" : stmt.condition;
+        Object increment = stmt.increment == null ? "()" : stmt.increment;
+        return parenthesize(name, initializer, condition, increment, stmt.body);
+    }
+
+    @Override
+    public String visitFunctionStmt(Stmt.Function stmt) {
+        return parenthesize("fun", stmt.name, "(" + join(stmt.params) + ")", stmt.body);
+    }
+
+    @Override
+    public String visitIfStmt(Stmt.If stmt) {
+        if (stmt.otherwise == null) {
+            return parenthesize("if", stmt.condition, stmt.then);
+        }
+        return parenthesize("if", stmt.condition, stmt.then, stmt.otherwise);
+    }
+
+    @Override
+    public String visitPrintStmt(Stmt.Print stmt) {
+        return parenthesize("print", stmt.expression);
+    }
+
+    @Override
+    public String visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return "(return)";
+        return parenthesize("return", stmt.value);
+    }
+
+    @Override
+    public String visitReturnBinaryStmt(Stmt.ReturnBinary stmt) {
+        return parenthesize("fused", stmt.original);
+    }
+
+    @Override
+    public String visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) {
+            return parenthesize("var", stmt.name);
+        }
+        return parenthesize("var", stmt.name, stmt.initializer);
+    }
+
+    @Override
+    public String visitWhileStmt(Stmt.While stmt) {
+        return parenthesize("while", stmt.condition, stmt.body);
+    }
+
+    @Override
+    public String visitAssignExpr(Expr.Assign expr) {
+        return parenthesize("=", expr.name, expr.value);
+    }
+
+    @Override
+    public String visitBinaryExpr(Expr.Binary expr) {
+        return parenthesize(expr.operator.lexeme(), expr.left, expr.right);
+    }
+
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        return parenthesize(expr.tail ? "tail-call" : "call", expr.callee, expr.arguments);
+    }
+
+    @Override
+    public String visitCompareConstantExpr(Expr.CompareConstant expr) {
+        return parenthesize("fused", expr.comparison);
+    }
+
+    @Override
+    public String visitFieldUpdateExpr(Expr.FieldUpdate expr) {
+        return parenthesize("fused", expr.set);
+    }
+
+    @Override
+    public String visitGetExpr(Expr.Get expr) {
+        return parenthesize(".", expr.object, expr.name);
+    }
+
+    @Override
+    public String visitGroupingExpr(Expr.Grouping expr) {
+        return parenthesize("group", expr.expression);
+    }
+
+    @Override
+    public String visitIncrementExpr(Expr.Increment expr) {
+        return parenthesize("fused", expr.assign);
+    }
+
+    @Override
+    public String visitInlineExpr(Expr.Inline expr) {
+        return parenthesize("inline", expr.function.name, expr.body);
+    }
+
+    @Override
+    public String visitInvokeExpr(Expr.Invoke expr) {
+        return parenthesize(expr.tail ? "tail-invoke" : "invoke", expr.object, expr.name, expr.arguments);
+    }
+
+    @Override
+    public String visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value instanceof String) return "\"" + expr.value + "\"";
+        return Values.stringify(expr.value);
+    }
+
+    @Override
+    public String visitLogicalExpr(Expr.Logical expr) {
+        return parenthesize(expr.operator.lexeme(), expr.left, expr.right);
+    }
+
+    @Override
+    public String visitSetExpr(Expr.Set expr) {
+        return parenthesize("=", expr.object, expr.name, expr.value);
+    }
+
+    @Override
+    public String visitSuperExpr(Expr.Super expr) {
+        return parenthesize("super", expr.method);
+    }
+
+    @Override
+    public String visitSuperInvokeExpr(Expr.SuperInvoke expr) {
+        return parenthesize("super-invoke", expr.method, expr.arguments);
+    }
+
+    @Override
+    public String visitThisExpr(Expr.This expr) {
+        return "this";
+    }
+
+    @Override
+    public String visitUnaryExpr(Expr.Unary expr) {
+        return parenthesize(expr.operator.lexeme(), expr.right);
+    }
+
+    @Override
+    public String visitVariableExpr(Expr.Variable expr) {
+        return expr.name.lexeme();
+    }
+}
@@ -0,0 +1,260 @@
+package org.yufengwng.lox;
+
+import static org.yufengwng.lox.Values.isEqual;
+import static org.yufengwng.lox.Values.isString;
+
+// The operation performed by a binary expression. Each one starts out
+// uninitialized and, on first execution, replaces itself in its node with a
+// version specialized to the operand types it saw. A specialized operation
+// that meets other types falls back to the generic one for good.
+abstract class BinaryOp {
+
+    // What an operation has learned about its operands, for the JIT.
+    enum Feedback {
+        NONE, NUMBERS, STRINGS, GENERIC;
+    }
+
+    abstract Object execute(Expr.Binary node, Object left, Object right);
+
+    Feedback feedback() {
+        return Feedback.NUMBERS;
+    }
+
+    static BinaryOp uninitialized() {
+        return Uninitialized.INSTANCE;
+    }
+
+    private static BinaryOp specialize(Token operator, Object left, Object right) {
+        boolean numbers = left instanceof Double && right instanceof Double;
+        switch (operator.type) {
+            case PLUS:
+                if (numbers) return NumberAdd.INSTANCE;
+                if (isString(left) && isString(right)) return StringConcat.INSTANCE;
+                return Generic.INSTANCE;
+            case MINUS:      return numbers ? NumberSubtract.INSTANCE : Generic.INSTANCE;
+            case STAR:       return numbers ? NumberMultiply.INSTANCE : Generic.INSTANCE;
+            case SLASH:      return numbers ? NumberDivide.INSTANCE : Generic.INSTANCE;
+            case LESS:       return numbers ? NumberLess.INSTANCE : Generic.INSTANCE;
+            case LESS_EQ:    return numbers ? NumberLessEqual.INSTANCE : Generic.INSTANCE;
+            case GREATER:    return numbers ? NumberGreater.INSTANCE : Generic.INSTANCE;
+            case GREATER_EQ: return numbers ? NumberGreaterEqual.INSTANCE : Generic.INSTANCE;
+            case EQ_EQ:      return numbers ? NumberEqual.INSTANCE : Generic.INSTANCE;
+            case NOT_EQ:     return numbers ? NumberNotEqual.INSTANCE : Generic.INSTANCE;
+            default:         return Generic.INSTANCE;
+        }
+    }
+
+    // Gives up on specializing this node and runs the generic operation.
+    private static Object generalize(Expr.Binary node, Object left, Object right) {
+        node.op = Generic.INSTANCE;
+        return Generic.INSTANCE.execute(node, left, right);
+    }
+
+    private static class Uninitialized extends BinaryOp {
+        static final Uninitialized INSTANCE = new Uninitialized();
+
+        @Override
+        Object execute(Expr.Binary node, Object left, Object right) {
+            node.op = specialize(node.operator, left, right);
+            return node.op.execute(node, left, right);
+        }
+
+        @Override
+        Feedback feedback() {
+            return Feedback.NONE;
+        }
+    }
+
+    // Handles every operand type, with the same checks as the spec requires.
+    private static class Generic extends BinaryOp {
+        static final Generic INSTANCE = new Generic();
+
+        @Override
+        Object execute(Expr.Binary node, Object left, Object right) {
+            Token operator = node.operator;
+            switch (operator.type) {
+                case EQ_EQ:
+                    return isEqual(left, right);
+                case NOT_EQ:
+                    return !isEqual(left, right);
+                case LESS:
+                    checkNumberOperands(operator, left, right);
+                    return (double) left < (double) right;
+                case LESS_EQ:
+                    checkNumberOperands(operator, left, right);
+                    return (double) left <= (double) right;
+                case GREATER:
+                    checkNumberOperands(operator, left, right);
+                    return (double) left > (double) right;
+                case GREATER_EQ:
+                    checkNumberOperands(operator, left, right);
+                    return (double) left >= (double) right;
+                case PLUS:
+                    if (left instanceof Double && right instanceof Double) {
+                        return (double) left + (double) right;
+                    }
+                    if (isString(left) && isString(right)) {
+                        return Rope.concat(left, right);
+                    }
+                    throw new RuntimeError(operator,
+                            "Operands must be two numbers or two strings.");
+                case MINUS:
+                    checkNumberOperands(operator, left, right);
+                    return (double) left - (double) right;
+                case STAR:
+                    checkNumberOperands(operator, left, right);
+                    return (double) left * (double) right;
+                case SLASH:
+                    checkNumberOperands(operator, left, right);
+                    return (double) left / (double) right;
+            }
+
+            throw new RuntimeError(operator, "Unhandled binary expression.");
+        }
+
+        @Override
+        Feedback feedback() {
+            return Feedback.GENERIC;
+        }
+
+        private static void checkNumberOperands(Token operator, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return;
+            throw new RuntimeError(operator, "Operands must be numbers.");
+        }
+    }
+
+    private static class StringConcat extends BinaryOp {
+        static final StringConcat INSTANCE = new StringConcat();
+
+        @Override
+        Object execute(Expr.Binary node, Object left, Object right) {
+            if (isString(left) && isString(right)) {
+                return Rope.concat(left, right);
+            }
+            return generalize(node, left, right);
+        }
+
+        @Override
+        Feedback feedback() {
+            return Feedback.STRINGS;
+        }
+    }
+
+    // Operations specialized to numbers. The tree interpreter applies them
+    // straight to unboxed operands.
+    abstract static class Arithmetic extends BinaryOp {
+        abstract double apply(double left, double right);
+
+        @Override
+        Object execute(Expr.Binary node, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return apply((double) left, (double) right);
+            }
+            return generalize(node, left, right);
+        }
+    }
+
+    abstract static class Comparison extends BinaryOp {
+        abstract boolean apply(double left, double right);
+
+        @Override
+        Object execute(Expr.Binary node, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return apply((double) left, (double) right);
+            }
+            return generalize(node, left, right);
+        }
+    }
+
+    private static class NumberAdd extends Arithmetic {
+        static final NumberAdd INSTANCE = new NumberAdd();
+
+        @Override
+        double apply(double left, double right) {
+            return left + right;
+        }
+    }
+
+    private static class NumberSubtract extends Arithmetic {
+        static final NumberSubtract INSTANCE = new NumberSubtract();
+
+        @Override
+        double apply(double left, double right) {
+            return left - right;
+        }
+    }
+
+    private static class NumberMultiply extends Arithmetic {
+        static final NumberMultiply INSTANCE = new NumberMultiply();
+
+        @Override
+        double apply(double left, double right) {
+            return left * right;
+        }
+    }
+
+    private static class NumberDivide extends Arithmetic {
+        static final NumberDivide INSTANCE = new NumberDivide();
+
+        @Override
+        double apply(double left, double right) {
+            return left / right;
+        }
+    }
+
+    private static class NumberLess extends Comparison {
+        static final NumberLess INSTANCE = new NumberLess();
+
+        @Override
+        boolean apply(double left, double right) {
+            return left < right;
+        }
+    }
+
+    private static class NumberLessEqual extends Comparison {
+        static final NumberLessEqual INSTANCE = new NumberLessEqual();
+
+        @Override
+        boolean apply(double left, double right) {
+            return left <= right;
+        }
+    }
+
+    private static class NumberGreater extends Comparison {
+        static final NumberGreater INSTANCE = new NumberGreater();
+
+        @Override
+        boolean apply(double left, double right) {
+            return left > right;
+        }
+    }
+
+    private static class NumberGreaterEqual extends Comparison {
+        static final NumberGreaterEqual INSTANCE = new NumberGreaterEqual();
+
+        @Override
+        boolean apply(double left, double right) {
+            return left >= right;
+        }
+    }
+
+    // Lox compares numbers by value the way Double.equals() does, so these
+    // skip the null handling in Values.isEqual().
+    private static class NumberEqual extends Comparison {
+        static final NumberEqual INSTANCE = new NumberEqual();
+
+        @Override
+        boolean apply(double left, double right) {
+            return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+        }
+    }
+
+    private static class NumberNotEqual extends Comparison {
+        static final NumberNotEqual INSTANCE = new NumberNotEqual();
+
+        @Override
+        boolean apply(double left, double right) {
+            return Double.doubleToLongBits(left) != Double.doubleToLongBits(right);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package org.yufengwng.lox;
+
+// Holds a local that closures capture and someone assigns to, so the frame
+// and every closure share one variable instead of copies of its value.
+class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,51 @@
+package org.yufengwng.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A sequence of bytecode along with its constant pool and line table.
+class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+
+    Object[] constants;
+
+    private final List<Object> pool = new ArrayList<>();
+    private final Map<Object, Integer> pooled = new HashMap<>();
+
+    void write(int value, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) value;
+        lines[count] = line;
+        count += 1;
+    }
+
+    // Adds a value to the constant pool, reusing the slot of an equal
+    // number or string that is already there.
+    int addConstant(Object value) {
+        boolean shareable = value instanceof Double || value instanceof String;
+        if (shareable) {
+            Integer index = pooled.get(value);
+            if (index != null) return index;
+        }
+
+        int index = pool.size();
+        pool.add(value);
+        if (shareable) pooled.put(value, index);
+        return index;
+    }
+
+    // Trims the code and freezes the constant pool once compiling is done.
+    void finish() {
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constants = pool.toArray();
+    }
+}
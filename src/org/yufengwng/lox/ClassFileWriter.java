@@ -0,0 +1,167 @@
+package org.yufengwng.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Writes a class file holding a single public static method. The JIT only
+// needs that much, so there is no support for fields or other attributes.
+// Version 49 class files are verified by type inference and do not need
+// stack map frames, which keeps branch emission simple.
+class ClassFileWriter {
+    private static final int VERSION = 49;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELD_REF = 9;
+    private static final int CONSTANT_METHOD_REF = 10;
+    private static final int CONSTANT_INTERFACE_METHOD_REF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+
+    int utf8(String value) {
+        String key = "utf8:" + value;
+        Integer index = entries.get(key);
+        if (index != null) return index;
+
+        try {
+            poolOut.writeByte(CONSTANT_UTF8);
+            poolOut.writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return add(key);
+    }
+
+    int integer(int value) {
+        String key = "int:" + value;
+        Integer index = entries.get(key);
+        if (index != null) return index;
+
+        write(CONSTANT_INTEGER, value >>> 16, value & 0xffff);
+        return add(key);
+    }
+
+    int classRef(String internalName) {
+        String key = "class:" + internalName;
+        Integer index = entries.get(key);
+        if (index != null) return index;
+
+        int name = utf8(internalName);
+        write(CONSTANT_CLASS, name);
+        return add(key);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELD_REF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHOD_REF, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_INTERFACE_METHOD_REF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        String key = tag + ":" + owner + "." + name + descriptor;
+        Integer index = entries.get(key);
+        if (index != null) return index;
+
+        int ownerIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        write(tag, ownerIndex, nameAndType);
+        return add(key);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "nat:" + name + descriptor;
+        Integer index = entries.get(key);
+        if (index != null) return index;
+
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        write(CONSTANT_NAME_AND_TYPE, nameIndex, descriptorIndex);
+        return add(key);
+    }
+
+    private void write(int tag, int first, int second) {
+        pool.write(tag);
+        pool.write(first >> 8);
+        pool.write(first);
+        pool.write(second >> 8);
+        pool.write(second);
+    }
+
+    private void write(int tag, int first) {
+        pool.write(tag);
+        pool.write(first >> 8);
+        pool.write(first);
+    }
+
+    private int add(String key) {
+        int index = poolCount++;
+        if (index > 0xffff) {
+            throw new IllegalStateException("Too many class file constants.");
+        }
+        entries.put(key, index);
+        return index;
+    }
+
+    byte[] toByteArray(String className, String methodName, String descriptor,
+            byte[] code, int codeLength, int maxStack, int maxLocals) {
+        int thisClass = classRef(className);
+        int superClass = classRef("java/lang/Object");
+        int name = utf8(methodName);
+        int type = utf8(descriptor);
+        int codeAttribute = utf8("Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+
+            out.writeShort(1); // methods
+            out.writeShort(ACC_PUBLIC | ACC_STATIC);
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1); // method attributes
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + codeLength);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(codeLength);
+            out.write(code, 0, codeLength);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // code attributes
+
+            out.writeShort(0); // class attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
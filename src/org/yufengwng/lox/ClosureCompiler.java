@@ -0,0 +1,711 @@
+package org.yufengwng.lox;
+
+import static org.yufengwng.lox.Values.isTruthy;
+import static org.yufengwng.lox.Values.stringify;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles each resolved node once into a tree of lambdas that run directly
+// against environments. Children and resolved slots are captured when the
+// tree is built, so running it needs no visitor dispatch. Functions, classes
+// and instances are the same runtime objects the tree-walker uses.
+class ClosureCompiler implements Engine, Expr.Visitor<ClosureCompiler.Evaluator>, Stmt.Visitor<ClosureCompiler.Executor> {
+    private final Globals globals = new Globals();
+
+    interface Evaluator {
+        Object eval(Environment env);
+    }
+
+    interface Executor {
+        Completion exec(Environment env);
+    }
+
+    // A compiled function body, which returns what the function returns.
+    interface Body {
+        Object run(Environment env);
+    }
+
+    // The value of the return statement that is completing, if any.
+    private Object returned = null;
+
+    ClosureCompiler() {
+        globals.define(NativeClock.NAME, new NativeClock());
+    }
+
+    @Override
+    public Globals globals() {
+        return globals;
+    }
+
+    @Override
+    public void interpret(List<Stmt> statements) {
+        Executor[] program = compile(statements);
+        try {
+            for (Executor executor : program) {
+                executor.exec(null);
+            }
+        } catch (RuntimeError error) {
+            Reporter.runtimeError(error);
+        }
+    }
+
+    private Executor[] compile(List<Stmt> statements) {
+        List<Executor> executors = new ArrayList<>();
+        for (Stmt statement : statements) {
+            if (statement != null) executors.add(compile(statement));
+        }
+        return executors.toArray(new Executor[0]);
+    }
+
+    private Executor compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Evaluator compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // Builds the body that LoxFunction runs in place of walking the tree.
+    private Body compileBody(Stmt.Function function) {
+        Executor[] body = compile(function.body);
+        return env -> {
+            if (run(body, env) == Completion.RETURN) {
+                Object value = returned;
+                returned = null;
+                return value;
+            }
+            return null;
+        };
+    }
+
+    private static Completion run(Executor[] executors, Environment env) {
+        for (Executor executor : executors) {
+            Completion completion = executor.exec(env);
+            if (completion != Completion.NORMAL) return completion;
+        }
+        return Completion.NORMAL;
+    }
+
+    private Evaluator[] compileArguments(List<Expr> arguments) {
+        Evaluator[] args = new Evaluator[arguments.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = compile(arguments.get(i));
+        }
+        return args;
+    }
+
+    // A boxed local gets a fresh cell each time its declaration runs.
+    private Executor define(boolean global, boolean boxed, int slot, Evaluator value) {
+        if (global) {
+            return env -> {
+                globals.define(slot, value.eval(env));
+                return Completion.NORMAL;
+            };
+        }
+        if (boxed) {
+            return env -> {
+                env.define(slot, new Cell(value.eval(env)));
+                return Completion.NORMAL;
+            };
+        }
+        return env -> {
+            env.define(slot, value.eval(env));
+            return Completion.NORMAL;
+        };
+    }
+
+    // Stores the value of a function or class into the variable defined for
+    // it, whose cell closures may have captured already.
+    private void initialize(Environment env, boolean global, boolean boxed, int slot, Object value) {
+        if (global) {
+            globals.define(slot, value);
+        } else if (boxed) {
+            ((Cell) env.values[slot]).value = value;
+        } else {
+            env.define(slot, value);
+        }
+    }
+
+    private Evaluator lookup(Token name, Access access, int slot, boolean boxed) {
+        switch (access) {
+            case LOCAL:
+                if (boxed) return env -> ((Cell) env.values[slot]).value;
+                return env -> env.values[slot];
+            case UPVALUE:
+                if (boxed) return env -> ((Cell) env.upvalues[slot]).value;
+                return env -> env.upvalues[slot];
+            default:
+                return env -> globals.fetch(slot, name);
+        }
+    }
+
+    @Override
+    public Executor visitBlockStmt(Stmt.Block stmt) {
+        Executor[] body = compile(stmt.statements);
+        int locals = stmt.locals;
+        if (stmt.inline) return env -> run(body, env);
+        return env -> run(body, new Environment(Environment.NO_UPVALUES, locals));
+    }
+
+    @Override
+    public Executor visitClassStmt(Stmt.Class stmt) {
+        Evaluator superclassExpr = stmt.superclass == null ? null : compile(stmt.superclass);
+        Body[] bodies = new Body[stmt.methods.size()];
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i] = compileBody(stmt.methods.get(i));
+        }
+
+        return env -> {
+            Object superclass = null;
+            if (superclassExpr != null) {
+                superclass = superclassExpr.eval(env);
+                if (!(superclass instanceof LoxClass)) {
+                    throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
+                }
+            }
+
+            if (stmt.global) {
+                globals.define(stmt.slot, null);
+            } else {
+                env.define(stmt.slot, stmt.boxed ? new Cell(null) : null);
+            }
+
+            // At top level 'super' gets a frame of its own.
+            Environment methodEnv = env;
+            if (superclassExpr != null) {
+                if (stmt.global) methodEnv = new Environment(Environment.NO_UPVALUES, 1);
+                methodEnv.define(stmt.superSlot, superclass);
+            }
+
+            Map<String, LoxFunction> methods = new HashMap<>();
+            for (int i = 0; i < bodies.length; i++) {
+                Stmt.Function method = stmt.methods.get(i);
+                boolean isInitializer = method.name.lexeme().equals("init");
+                methods.put(method.name.lexeme(), new LoxFunction(method, bodies[i],
+                            Environment.capture(methodEnv, method.captures), isInitializer));
+            }
+
+            LoxClass klass = new LoxClass(stmt.name.lexeme(), (LoxClass) superclass, methods);
+            initialize(env, stmt.global, stmt.boxed, stmt.slot, klass);
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Executor visitExpressionStmt(Stmt.Expression stmt) {
+        Evaluator expression = compile(stmt.expression);
+        return env -> {
+            expression.eval(env);
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Executor visitForStmt(Stmt.For stmt) {
+        Executor initializer = stmt.initializer == null ? env -> Completion.NORMAL : compile(stmt.initializer);
+        Evaluator condition = stmt.condition == null ? env -> true : compile(stmt.condition);
+        Evaluator increment = stmt.increment == null ? env -> null : compile(stmt.increment);
+        Executor body = compile(stmt.body);
+
+        Executor loop = env -> {
+            while (isTruthy(condition.eval(env))) {
+                Completion completion = body.exec(env);
+                if (completion != Completion.NORMAL) return completion;
+                increment.eval(env);
+            }
+            return Completion.NORMAL;
+        };
+
+        Executor run;
+        if (stmt.counted) {
+            int slot = ((Stmt.Var) stmt.initializer).slot;
+            Expr.Binary comparison = (Expr.Binary) stmt.condition;
+            Evaluator limit = compile(comparison.right);
+            double step = stmt.step;
+
+            // Keeps the counter in a double, only storing it for the body to read.
+            run = env -> {
+                initializer.exec(env);
+                Object start = env.values[slot];
+                if (!(start instanceof Double)) return loop.exec(env);
+
+                double counter = (double) start;
+                while (true) {
+                    Object bound = limit.eval(env);
+                    if (!(bound instanceof Double)) {
+                        throw new RuntimeError(comparison.operator, "Operands must be numbers.");
+                    }
+                    if (!Values.compare(comparison.operator.type, counter, (double) bound)) break;
+
+                    Completion completion = body.exec(env);
+                    if (completion != Completion.NORMAL) return completion;
+                    counter += step;
+                    env.values[slot] = counter;
+                }
+                return Completion.NORMAL;
+            };
+        } else {
+            run = env -> {
+                initializer.exec(env);
+                return loop.exec(env);
+            };
+        }
+
+        int locals = stmt.locals;
+        if (stmt.inline) return run;
+        return env -> run.exec(new Environment(Environment.NO_UPVALUES, locals));
+    }
+
+    @Override
+    public Executor visitFunctionStmt(Stmt.Function stmt) {
+        Body body = compileBody(stmt);
+        if (!stmt.boxed) {
+            return define(stmt.global, false, stmt.slot,
+                    env -> new LoxFunction(stmt, body, Environment.capture(env, stmt.captures), false));
+        }
+        return env -> {
+            Cell cell = new Cell(null);
+            env.define(stmt.slot, cell);
+            cell.value = new LoxFunction(stmt, body, Environment.capture(env, stmt.captures), false);
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Executor visitIfStmt(Stmt.If stmt) {
+        Evaluator condition = compile(stmt.condition);
+        Executor then = compile(stmt.then);
+        if (stmt.otherwise == null) {
+            return env -> {
+                if (isTruthy(condition.eval(env))) return then.exec(env);
+                return Completion.NORMAL;
+            };
+        }
+
+        Executor otherwise = compile(stmt.otherwise);
+        return env -> {
+            if (isTruthy(condition.eval(env))) {
+                return then.exec(env);
+            }
+            return otherwise.exec(env);
+        };
+    }
+
+    @Override
+    public Executor visitPrintStmt(Stmt.Print stmt) {
+        Evaluator expression = compile(stmt.expression);
+        return env -> {
+            System.out.println(stringify(expression.eval(env)));
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Executor visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return env -> {
+                returned = null;
+                return Completion.RETURN;
+            };
+        }
+
+        Evaluator value = compile(stmt.value);
+        return env -> {
+            returned = value.eval(env);
+            return Completion.RETURN;
+        };
+    }
+
+    @Override
+    public Executor visitReturnBinaryStmt(Stmt.ReturnBinary stmt) {
+        Expr.Binary binary = stmt.value;
+        Evaluator left = compile(binary.left);
+        Evaluator right = compile(binary.right);
+        return env -> {
+            returned = binary.op.execute(binary, left.eval(env), right.eval(env));
+            return Completion.RETURN;
+        };
+    }
+
+    @Override
+    public Executor visitVarStmt(Stmt.Var stmt) {
+        Evaluator initializer = stmt.initializer == null ? env -> null : compile(stmt.initializer);
+        return define(stmt.global, stmt.boxed, stmt.slot, initializer);
+    }
+
+    @Override
+    public Executor visitWhileStmt(Stmt.While stmt) {
+        Evaluator condition = compile(stmt.condition);
+        Executor body = compile(stmt.body);
+        return env -> {
+            while (isTruthy(condition.eval(env))) {
+                Completion completion = body.exec(env);
+                if (completion != Completion.NORMAL) return completion;
+            }
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Evaluator visitAssignExpr(Expr.Assign expr) {
+        Evaluator value = compile(expr.value);
+        int slot = expr.slot;
+
+        switch (expr.access) {
+            case LOCAL:
+                if (expr.boxed) {
+                    return env -> {
+                        Object result = value.eval(env);
+                        ((Cell) env.values[slot]).value = result;
+                        return result;
+                    };
+                }
+                return env -> {
+                    Object result = value.eval(env);
+                    env.values[slot] = result;
+                    return result;
+                };
+            case UPVALUE:
+                return env -> {
+                    Object result = value.eval(env);
+                    ((Cell) env.upvalues[slot]).value = result;
+                    return result;
+                };
+            default:
+                return env -> {
+                    Object result = value.eval(env);
+                    globals.assign(slot, expr.name, result);
+                    return result;
+                };
+        }
+    }
+
+    @Override
+    public Evaluator visitBinaryExpr(Expr.Binary expr) {
+        Evaluator left = compile(expr.left);
+        Evaluator right = compile(expr.right);
+        return env -> {
+            Object a = left.eval(env);
+            Object b = right.eval(env);
+            return expr.op.execute(expr, a, b);
+        };
+    }
+
+    @Override
+    public Evaluator visitCallExpr(Expr.Call expr) {
+        Evaluator callee = compile(expr.callee);
+        Evaluator[] args = compileArguments(expr.arguments);
+        return env -> call(expr, callee.eval(env), args, env);
+    }
+
+    // Makes a call whose callee has already been evaluated.
+    private static Object call(Expr.Call expr, Object callee, Evaluator[] args, Environment env) {
+        List<Object> arguments = evalArguments(args, env);
+        LoxCallable function = checkCallable(callee, expr.paren, arguments);
+        if (expr.tail && function instanceof LoxFunction) {
+            return ((LoxFunction) function).tailCall(arguments, env);
+        }
+        try {
+            return function.call(null, arguments);
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
+    }
+
+    private static LoxCallable checkCallable(Object callee, Token paren, List<Object> arguments) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable) callee;
+        if (arguments.size() != function.arity()) {
+            throw new RuntimeError(paren, "Expected "
+                    + function.arity() + " arguments but got "
+                    + arguments.size() + ".");
+        }
+        return function;
+    }
+
+    private static List<Object> evalArguments(Evaluator[] args, Environment env) {
+        List<Object> arguments = new ArrayList<>(args.length);
+        for (Evaluator arg : args) {
+            arguments.add(arg.eval(env));
+        }
+        return arguments;
+    }
+
+    @Override
+    public Evaluator visitCompareConstantExpr(Expr.CompareConstant expr) {
+        Expr.Variable variable = expr.variable;
+        Evaluator original = compile(expr.comparison);
+        if (variable.access != Access.LOCAL || variable.boxed) return original;
+
+        int slot = variable.slot;
+        double constant = expr.constant;
+        switch (expr.comparison.operator.type) {
+            case LESS:
+                return env -> {
+                    Object value = env.values[slot];
+                    return value instanceof Double ? (Object) ((double) value < constant) : original.eval(env);
+                };
+            case LESS_EQ:
+                return env -> {
+                    Object value = env.values[slot];
+                    return value instanceof Double ? (Object) ((double) value <= constant) : original.eval(env);
+                };
+            case GREATER:
+                return env -> {
+                    Object value = env.values[slot];
+                    return value instanceof Double ? (Object) ((double) value > constant) : original.eval(env);
+                };
+            default:
+                return env -> {
+                    Object value = env.values[slot];
+                    return value instanceof Double ? (Object) ((double) value >= constant) : original.eval(env);
+                };
+        }
+    }
+
+    @Override
+    public Evaluator visitFieldUpdateExpr(Expr.FieldUpdate expr) {
+        Evaluator object = compile(expr.set.object);
+        Evaluator right = compile(expr.operation.right);
+        Expr.Binary operation = expr.operation;
+        return env -> {
+            Object instance = object.eval(env);
+            if (!(instance instanceof LoxInstance)) {
+                throw new RuntimeError(expr.set.name, "Only instances have fields.");
+            }
+
+            Object left = expr.get.cache.get((LoxInstance) instance);
+            Object result = operation.op.execute(operation, left, right.eval(env));
+            expr.set.cache.set((LoxInstance) instance, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Evaluator visitGetExpr(Expr.Get expr) {
+        Evaluator object = compile(expr.object);
+        return env -> {
+            Object value = object.eval(env);
+            if (value instanceof LoxInstance) {
+                return expr.cache.get((LoxInstance) value);
+            }
+            throw new RuntimeError(expr.name, "Only instances have properties.");
+        };
+    }
+
+    @Override
+    public Evaluator visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Evaluator visitInvokeExpr(Expr.Invoke expr) {
+        Evaluator object = compile(expr.object);
+        Evaluator[] args = compileArguments(expr.arguments);
+        return env -> {
+            Object receiver = object.eval(env);
+            return invoke(expr, receiver, findMethod(expr, receiver), args, env);
+        };
+    }
+
+    private static Object findMethod(Expr.Invoke expr, Object receiver) {
+        if (!(receiver instanceof LoxInstance)) {
+            throw new RuntimeError(expr.name, "Only instances have properties.");
+        }
+        return expr.cache.getForCall((LoxInstance) receiver);
+    }
+
+    private static Object invoke(Expr.Invoke expr, Object receiver, Object callee,
+            Evaluator[] args, Environment env) {
+        List<Object> arguments = evalArguments(args, env);
+        LoxCallable function = checkCallable(callee, expr.paren, arguments);
+        try {
+            if (function instanceof LoxFunction) {
+                LoxFunction method = (LoxFunction) function;
+                boolean unbound = method.isUnbound();
+                if (expr.tail) {
+                    return unbound ? method.tailInvoke(receiver, arguments, env)
+                                   : method.tailCall(arguments, env);
+                }
+                if (unbound) return method.invoke(null, receiver, arguments);
+            }
+            return function.call(null, arguments);
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
+    }
+
+    @Override
+    public Evaluator visitIncrementExpr(Expr.Increment expr) {
+        Expr.Assign assign = expr.assign;
+        Evaluator original = compile(assign);
+        if (assign.access != Access.LOCAL || assign.boxed) return original;
+
+        int slot = assign.slot;
+        double amount = expr.amount;
+        return env -> {
+            Object value = env.values[slot];
+            if (!(value instanceof Double)) return original.eval(env);
+            Object result = (double) value + amount;
+            env.values[slot] = result;
+            return result;
+        };
+    }
+
+    // Runs the inlined body with the arguments in the caller's slots, or
+    // makes the call if the callee is not the function that was inlined.
+    @Override
+    public Evaluator visitInlineExpr(Expr.Inline expr) {
+        Evaluator body = compile(expr.body);
+        boolean returns = expr.returns;
+        int slot = expr.slot;
+
+        if (expr.call instanceof Expr.Invoke) {
+            Expr.Invoke invoke = (Expr.Invoke) expr.call;
+            Evaluator object = compile(invoke.object);
+            Evaluator[] args = compileArguments(invoke.arguments);
+            return env -> {
+                Object receiver = object.eval(env);
+                Object callee = findMethod(invoke, receiver);
+                if (!LoxFunction.runs(callee, expr.function)) {
+                    return invoke(invoke, receiver, callee, args, env);
+                }
+                env.values[slot] = receiver;
+                for (int i = 0; i < args.length; i++) {
+                    env.values[slot + 1 + i] = args[i].eval(env);
+                }
+                Object value = body.eval(env);
+                return returns ? value : null;
+            };
+        }
+
+        Expr.Call call = (Expr.Call) expr.call;
+        Evaluator function = compile(call.callee);
+        Evaluator[] args = compileArguments(call.arguments);
+        return env -> {
+            Object callee = function.eval(env);
+            if (!LoxFunction.runs(callee, expr.function)) return call(call, callee, args, env);
+            for (int i = 0; i < args.length; i++) {
+                env.values[slot + i] = args[i].eval(env);
+            }
+            Object value = body.eval(env);
+            return returns ? value : null;
+        };
+    }
+
+    @Override
+    public Evaluator visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return env -> value;
+    }
+
+    @Override
+    public Evaluator visitLogicalExpr(Expr.Logical expr) {
+        Evaluator left = compile(expr.left);
+        Evaluator right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR) {
+            return env -> {
+                Object value = left.eval(env);
+                return isTruthy(value) ? value : right.eval(env);
+            };
+        }
+        return env -> {
+            Object value = left.eval(env);
+            return !isTruthy(value) ? value : right.eval(env);
+        };
+    }
+
+    @Override
+    public Evaluator visitSetExpr(Expr.Set expr) {
+        Evaluator object = compile(expr.object);
+        Evaluator value = compile(expr.value);
+        return env -> {
+            Object instance = object.eval(env);
+            if (!(instance instanceof LoxInstance)) {
+                throw new RuntimeError(expr.name, "Only instances have fields.");
+            }
+
+            Object result = value.eval(env);
+            expr.cache.set((LoxInstance) instance, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Evaluator visitSuperExpr(Expr.Super expr) {
+        Evaluator superclassExpr = lookup(expr.keyword, expr.access, expr.slot, false);
+        Evaluator objectExpr = lookup(expr.keyword, expr.thisAccess, expr.thisSlot, false);
+        String name = expr.method.lexeme();
+        return env -> {
+            LoxClass superclass = (LoxClass) superclassExpr.eval(env);
+            LoxInstance object = (LoxInstance) objectExpr.eval(env);
+            LoxFunction method = superclass.findMethod(name);
+
+            if (method == null) {
+                throw new RuntimeError(expr.method, "Undefined property '" + name + "'.");
+            }
+
+            return method.bind(object);
+        };
+    }
+
+    @Override
+    public Evaluator visitSuperInvokeExpr(Expr.SuperInvoke expr) {
+        Evaluator superclassExpr = lookup(expr.keyword, expr.access, expr.slot, false);
+        Evaluator objectExpr = lookup(expr.keyword, expr.thisAccess, expr.thisSlot, false);
+        String name = expr.method.lexeme();
+        Evaluator[] args = compileArguments(expr.arguments);
+        return env -> {
+            LoxClass superclass = (LoxClass) superclassExpr.eval(env);
+            Object object = objectExpr.eval(env);
+            LoxFunction method = superclass.findMethod(name);
+
+            if (method == null) {
+                throw new RuntimeError(expr.method, "Undefined property '" + name + "'.");
+            }
+
+            List<Object> arguments = evalArguments(args, env);
+            checkCallable(method, expr.paren, arguments);
+            try {
+                return method.invoke(null, object, arguments);
+            } catch (StackOverflowError error) {
+                throw new RuntimeError(expr.paren, "Stack overflow.");
+            }
+        };
+    }
+
+    @Override
+    public Evaluator visitThisExpr(Expr.This expr) {
+        return lookup(expr.keyword, expr.access, expr.slot, false);
+    }
+
+    @Override
+    public Evaluator visitUnaryExpr(Expr.Unary expr) {
+        Evaluator right = compile(expr.right);
+        switch (expr.operator.type) {
+            case BANG:
+                return env -> !isTruthy(right.eval(env));
+            case MINUS:
+                return env -> {
+                    Object value = right.eval(env);
+                    if (!(value instanceof Double)) {
+                        throw new RuntimeError(expr.operator, "Operand must be a number.");
+                    }
+                    return - (double) value;
+                };
+        }
+        throw new RuntimeError(expr.operator, "Unhandled unary expression.");
+    }
+
+    @Override
+    public Evaluator visitVariableExpr(Expr.Variable expr) {
+        return lookup(expr.name, expr.access, expr.slot, expr.boxed);
+    }
+}
@@ -0,0 +1,662 @@
+package org.yufengwng.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Compiles resolved syntax trees into bytecode for the VM. Scoping errors
+// have already been reported by the resolver, so this only has to lay out
+// locals on the stack and track which of them closures capture. The only
+// errors left are programs too large for the operands of the bytecode.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private FunctionState state = null;
+    private int line = 0;
+
+    private enum FunctionType {
+        SCRIPT, FUNCTION, INITIALIZER, METHOD;
+    }
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final boolean isLocal;
+        final int index;
+
+        Upvalue(boolean isLocal, int index) {
+            this.isLocal = isLocal;
+            this.index = index;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VmFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        int stackDepth = 0;
+
+        FunctionState(FunctionState enclosing, VmFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+        }
+    }
+
+    VmFunction compile(List<Stmt> statements) {
+        state = new FunctionState(null, new VmFunction(null, 0), FunctionType.SCRIPT);
+        addLocal("");
+        adjustStack(1);
+        for (Stmt statement : statements) {
+            if (statement != null) compile(statement);
+        }
+        emitReturn();
+        return endFunction();
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void compileFunction(Stmt.Function declaration, FunctionType type) {
+        VmFunction function = new VmFunction(declaration.name.lexeme(), declaration.params.size());
+        state = new FunctionState(state, function, type);
+
+        beginScope();
+        addLocal(type == FunctionType.FUNCTION ? "" : "this");
+        for (Token param : declaration.params) {
+            addLocal(param.lexeme());
+        }
+        // The callee or receiver and the arguments are already on the stack.
+        adjustStack(state.locals.size());
+        for (Stmt statement : declaration.body) {
+            compile(statement);
+        }
+        emitReturn();
+
+        List<Upvalue> upvalues = state.upvalues;
+        endFunction();
+
+        line = declaration.name.line;
+        emitOp(OpCode.CLOSURE, 1);
+        emitShort(makeConstant(function));
+        for (Upvalue upvalue : upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitShort(upvalue.index);
+        }
+    }
+
+    private VmFunction endFunction() {
+        VmFunction function = state.function;
+        function.upvalueCount = state.upvalues.size();
+        function.chunk.finish();
+        state = state.enclosing;
+        return function;
+    }
+
+    private void beginScope() {
+        state.scopeDepth += 1;
+    }
+
+    private void endScope() {
+        state.scopeDepth -= 1;
+
+        List<Local> locals = state.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > state.scopeDepth) {
+            Local local = locals.remove(locals.size() - 1);
+            emitOp(local.isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP, -1);
+        }
+    }
+
+    // Claims the value on top of the stack as a new local variable.
+    private void addLocal(String name) {
+        state.locals.add(new Local(name, state.scopeDepth));
+    }
+
+    private int resolveLocal(FunctionState function, String name) {
+        for (int i = function.locals.size() - 1; i >= 0; i--) {
+            if (function.locals.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState function, String name) {
+        if (function.enclosing == null) return -1;
+
+        int local = resolveLocal(function.enclosing, name);
+        if (local != -1) {
+            function.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(function, true, local);
+        }
+
+        int upvalue = resolveUpvalue(function.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(function, false, upvalue);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState function, boolean isLocal, int index) {
+        List<Upvalue> upvalues = function.upvalues;
+        for (int i = 0; i < upvalues.size(); i++) {
+            Upvalue upvalue = upvalues.get(i);
+            if (upvalue.isLocal == isLocal && upvalue.index == index) {
+                return i;
+            }
+        }
+        upvalues.add(new Upvalue(isLocal, index));
+        return upvalues.size() - 1;
+    }
+
+    private void getVariable(String name, Access access, int slot) {
+        if (access == Access.GLOBAL) {
+            emitOp(OpCode.GET_GLOBAL, 1);
+            emitShort(slot);
+            return;
+        }
+
+        int local = resolveLocal(state, name);
+        if (local != -1) {
+            emitOp(OpCode.GET_LOCAL, 1);
+            emitShort(local);
+        } else {
+            emitOp(OpCode.GET_UPVALUE, 1);
+            emitShort(resolveUpvalue(state, name));
+        }
+    }
+
+    private void setVariable(String name, Access access, int slot) {
+        if (access == Access.GLOBAL) {
+            emitOp(OpCode.SET_GLOBAL, 0);
+            emitShort(slot);
+            return;
+        }
+
+        int local = resolveLocal(state, name);
+        if (local != -1) {
+            emitOp(OpCode.SET_LOCAL, 0);
+            emitShort(local);
+        } else {
+            emitOp(OpCode.SET_UPVALUE, 0);
+            emitShort(resolveUpvalue(state, name));
+        }
+    }
+
+    // Binds the value on top of the stack to a newly declared variable.
+    private void defineVariable(boolean global, int slot, String name) {
+        if (global) {
+            emitOp(OpCode.DEFINE_GLOBAL, -1);
+            emitShort(slot);
+        } else {
+            addLocal(name);
+        }
+    }
+
+    private int makeConstant(Object value) {
+        int index = state.function.chunk.addConstant(value);
+        // Reported once, for the first constant that does not fit.
+        if (index > 0xffff) {
+            if (index == 0x10000) Reporter.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return index;
+    }
+
+    private void adjustStack(int effect) {
+        state.stackDepth += effect;
+        if (state.stackDepth > state.function.maxStack) {
+            state.function.maxStack = state.stackDepth;
+        }
+    }
+
+    private void emitByte(int value) {
+        state.function.chunk.write(value, line);
+    }
+
+    private void emitShort(int value) {
+        emitByte((value >> 8) & 0xff);
+        emitByte(value & 0xff);
+    }
+
+    private void emitOp(byte op, int stackEffect) {
+        emitByte(op);
+        adjustStack(stackEffect);
+    }
+
+    private void emitConstant(Object value) {
+        emitOp(OpCode.CONSTANT, 1);
+        emitShort(makeConstant(value));
+    }
+
+    private void emitReturn() {
+        if (state.type == FunctionType.INITIALIZER) {
+            emitOp(OpCode.GET_LOCAL, 1);
+            emitShort(0);
+        } else {
+            emitOp(OpCode.NIL, 1);
+        }
+        emitOp(OpCode.RETURN, -1);
+    }
+
+    private int emitJump(byte op) {
+        emitOp(op, 0);
+        emitShort(0xffff);
+        return state.function.chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        Chunk chunk = state.function.chunk;
+        int jump = chunk.count - offset - 2;
+        if (jump > 0xffff) {
+            Reporter.error(line, "Too much code to jump over.");
+            return;
+        }
+        chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitOp(OpCode.LOOP, 0);
+        int offset = state.function.chunk.count - loopStart + 2;
+        if (offset > 0xffff) {
+            Reporter.error(line, "Loop body too large.");
+        }
+        emitShort(offset);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        String name = stmt.name.lexeme();
+        int nameConstant = makeConstant(name);
+
+        // Reserve the class variable's stack slot before the superclass
+        // scope so locals line up with where their values live.
+        if (!stmt.global) {
+            line = stmt.name.line;
+            emitOp(OpCode.NIL, 1);
+            addLocal(name);
+        }
+
+        if (stmt.superclass != null) {
+            beginScope();
+            compile(stmt.superclass);
+            addLocal("super");
+        }
+
+        line = stmt.name.line;
+        emitOp(OpCode.CLASS, 1);
+        emitShort(nameConstant);
+
+        if (stmt.superclass != null) {
+            line = stmt.superclass.name.line;
+            emitOp(OpCode.INHERIT, 0);
+        }
+
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = FunctionType.METHOD;
+            if (method.name.lexeme().equals("init")) {
+                type = FunctionType.INITIALIZER;
+            }
+            compileFunction(method, type);
+            emitOp(OpCode.METHOD, -1);
+            emitShort(makeConstant(method.name.lexeme()));
+        }
+
+        line = stmt.name.line;
+        if (stmt.global) {
+            emitOp(OpCode.DEFINE_GLOBAL, -1);
+            emitShort(stmt.slot);
+        } else {
+            emitOp(OpCode.SET_LOCAL, 0);
+            emitShort(resolveLocal(state, name));
+            emitOp(OpCode.POP, -1);
+        }
+
+        if (stmt.superclass != null) {
+            endScope();
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.initializer != null) compile(stmt.initializer);
+
+        int loopStart = state.function.chunk.count;
+        int exitJump = -1;
+        if (stmt.condition != null) {
+            compile(stmt.condition);
+            exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emitOp(OpCode.POP, -1);
+        }
+        compile(stmt.body);
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emitOp(OpCode.POP, -1);
+        }
+        emitLoop(loopStart);
+
+        if (exitJump >= 0) {
+            patchJump(exitJump);
+            adjustStack(1);
+            emitOp(OpCode.POP, -1);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.global) {
+            compileFunction(stmt, FunctionType.FUNCTION);
+            defineVariable(true, stmt.slot, stmt.name.lexeme());
+        } else {
+            // Declare first so the function can refer to itself.
+            addLocal(stmt.name.lexeme());
+            compileFunction(stmt, FunctionType.FUNCTION);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP, -1);
+        compile(stmt.then);
+
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        adjustStack(1);
+        emitOp(OpCode.POP, -1);
+        if (stmt.otherwise != null) compile(stmt.otherwise);
+        patchJump(elseJump);
+
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.PRINT, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            emitReturn();
+        } else {
+            compile(stmt.value);
+            emitOp(OpCode.RETURN, -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnBinaryStmt(Stmt.ReturnBinary stmt) {
+        compile(stmt.original);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitOp(OpCode.NIL, 1);
+        }
+        line = stmt.name.line;
+        defineVariable(stmt.global, stmt.slot, stmt.name.lexeme());
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = state.function.chunk.count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP, -1);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        adjustStack(1);
+        emitOp(OpCode.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        setVariable(expr.name.lexeme(), expr.access, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case EQ_EQ:      emitOp(OpCode.EQUAL, -1); break;
+            case NOT_EQ:     emitOp(OpCode.NOT_EQUAL, -1); break;
+            case LESS:       emitOp(OpCode.LESS, -1); break;
+            case LESS_EQ:    emitOp(OpCode.LESS_EQUAL, -1); break;
+            case GREATER:    emitOp(OpCode.GREATER, -1); break;
+            case GREATER_EQ: emitOp(OpCode.GREATER_EQUAL, -1); break;
+            case PLUS:       emitOp(OpCode.ADD, -1); break;
+            case MINUS:      emitOp(OpCode.SUBTRACT, -1); break;
+            case STAR:       emitOp(OpCode.MULTIPLY, -1); break;
+            case SLASH:      emitOp(OpCode.DIVIDE, -1); break;
+            default:
+                throw new IllegalStateException("Unhandled binary operator " + expr.operator.type + ".");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+        compileArguments(expr.arguments);
+        line = expr.paren.line;
+        emitOp(expr.tail ? OpCode.TAIL_CALL : OpCode.CALL, -expr.arguments.size());
+        emitByte(expr.arguments.size());
+        return null;
+    }
+
+    private void compileArguments(List<Expr> arguments) {
+        for (Expr argument : arguments) {
+            compile(argument);
+        }
+    }
+
+    private void emitInvoke(byte op, String name, int argCount) {
+        emitOp(op, -argCount);
+        emitShort(makeConstant(name));
+        emitByte(argCount);
+    }
+
+    // Bytecode has no dispatch per node to save, so fused nodes compile to
+    // what they stand for.
+    @Override
+    public Void visitCompareConstantExpr(Expr.CompareConstant expr) {
+        compile(expr.comparison);
+        return null;
+    }
+
+    @Override
+    public Void visitFieldUpdateExpr(Expr.FieldUpdate expr) {
+        compile(expr.set);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitOp(OpCode.GET_PROPERTY, 0);
+        emitShort(makeConstant(expr.name.lexeme()));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    // The VM keeps arguments on its stack, so it makes the call instead.
+    @Override
+    public Void visitIncrementExpr(Expr.Increment expr) {
+        compile(expr.assign);
+        return null;
+    }
+
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        compile(expr.call);
+        return null;
+    }
+
+    @Override
+    public Void visitInvokeExpr(Expr.Invoke expr) {
+        compile(expr.object);
+        compileArguments(expr.arguments);
+        line = expr.name.line;
+        emitInvoke(expr.tail ? OpCode.TAIL_INVOKE : OpCode.INVOKE, expr.name.lexeme(), expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(OpCode.NIL, 1);
+        } else if (expr.value == Boolean.TRUE) {
+            emitOp(OpCode.TRUE, 1);
+        } else if (expr.value == Boolean.FALSE) {
+            emitOp(OpCode.FALSE, 1);
+        } else {
+            emitConstant(expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        byte op = expr.operator.type == TokenType.OR ? OpCode.JUMP_IF_TRUE : OpCode.JUMP_IF_FALSE;
+        int endJump = emitJump(op);
+        emitOp(OpCode.POP, -1);
+        compile(expr.right);
+        patchJump(endJump);
+
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        // A receiver of 'this' is always an instance, so only other
+        // receivers need to be checked before the value is evaluated.
+        if (!(expr.object instanceof Expr.This)) {
+            emitOp(OpCode.CHECK_FIELDS, 0);
+        }
+        compile(expr.value);
+        line = expr.name.line;
+        emitOp(OpCode.SET_PROPERTY, -1);
+        emitShort(makeConstant(expr.name.lexeme()));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.keyword.line;
+        getVariable("this", expr.thisAccess, expr.thisSlot);
+        getVariable("super", expr.access, expr.slot);
+        line = expr.method.line;
+        emitOp(OpCode.GET_SUPER, -1);
+        emitShort(makeConstant(expr.method.lexeme()));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperInvokeExpr(Expr.SuperInvoke expr) {
+        line = expr.keyword.line;
+        getVariable("this", expr.thisAccess, expr.thisSlot);
+        compileArguments(expr.arguments);
+        getVariable("super", expr.access, expr.slot);
+        line = expr.method.line;
+        emitInvoke(OpCode.SUPER_INVOKE, expr.method.lexeme(), expr.arguments.size());
+        adjustStack(-1);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        getVariable("this", expr.access, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG:  emitOp(OpCode.NOT, 0); break;
+            case MINUS: emitOp(OpCode.NEGATE, 0); break;
+            default:
+                throw new IllegalStateException("Unhandled unary operator " + expr.operator.type + ".");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        getVariable(expr.name.lexeme(), expr.access, expr.slot);
+        return null;
+    }
+}
@@ -0,0 +1,9 @@
+package org.yufengwng.lox;
+
+// How running a statement finished. A return statement completes with
+// RETURN, which every enclosing statement passes on until the function
+// call that ran them picks up the value. Engines keep that value to the
+// side, so returning neither allocates nor unwinds the stack.
+enum Completion {
+    NORMAL, RETURN;
+}
@@ -0,0 +1,12 @@
+package org.yufengwng.lox;
+
+import java.util.List;
+
+// Runs resolved programs. Implementations share the global slots handed
+// out by the resolver.
+interface Engine {
+
+    Globals globals();
+
+    void interpret(List<Stmt> statements);
+}
@@ -1,60 +1,37 @@
 package org.yufengwng.lox;
 
-import java.util.HashMap;
-import java.util.Map;
-
+// The frame of one function call, or of a top-level block. Variables of
+// enclosing functions are not reachable from here: a closure copies the
+// ones it uses into its upvalues when it is created, so a frame nobody
+// captured from is garbage as soon as the call returns.
 class Environment {
-    final Environment enclosing;
+    static final Object[] NO_UPVALUES = new Object[0];
 
-    private final Map<String, Object> values = new HashMap<>();
+    // Of the closure running in this frame.
+    final Object[] upvalues;
 
-    Environment() {
-        this.enclosing = null;
-    }
+    final Object[] values;
 
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    Environment(Object[] upvalues, int size) {
+        this.upvalues = upvalues;
+        this.values = new Object[size];
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    void define(int slot, Object value) {
+        values[slot] = value;
     }
 
-    Object fetch(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-        if (enclosing != null) {
-            return enclosing.fetch(name);
-        }
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
-    }
-
-    Object fetchAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
-    }
+    // Collects what a closure created in the frame captures, see
+    // Stmt.Function.captures. Only closures created at top level have no
+    // frame, and those capture nothing.
+    static Object[] capture(Environment frame, int[] captures) {
+        if (captures.length == 0) return NO_UPVALUES;
 
-    Environment ancestor(int distance) {
-        Environment current = this;
-        for (int i = 0; i < distance; i++) {
-            current = current.enclosing;
+        Object[] upvalues = new Object[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            int from = captures[i];
+            upvalues[i] = from >= 0 ? frame.values[from] : frame.upvalues[-from - 1];
         }
-        return current;
-    }
-
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
-    }
-
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+        return upvalues;
     }
 }
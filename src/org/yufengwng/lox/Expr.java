@@ -7,12 +7,18 @@ abstract class Expr {
         R visitAssignExpr(Assign expr);
         R visitBinaryExpr(Binary expr);
         R visitCallExpr(Call expr);
+        R visitCompareConstantExpr(CompareConstant expr);
+        R visitFieldUpdateExpr(FieldUpdate expr);
         R visitGetExpr(Get expr);
         R visitGroupingExpr(Grouping expr);
+        R visitIncrementExpr(Increment expr);
+        R visitInlineExpr(Inline expr);
+        R visitInvokeExpr(Invoke expr);
         R visitLiteralExpr(Literal expr);
         R visitLogicalExpr(Logical expr);
         R visitSetExpr(Set expr);
         R visitSuperExpr(Super expr);
+        R visitSuperInvokeExpr(SuperInvoke expr);
         R visitThisExpr(This expr);
         R visitUnaryExpr(Unary expr);
         R visitVariableExpr(Variable expr);
@@ -24,6 +30,12 @@ abstract class Expr {
         final Token name;
         final Expr value;
 
+        Access access = Access.GLOBAL;
+        int slot;
+
+        // Reads and writes go through a Cell, see Resolver.
+        boolean boxed;
+
         Assign(Token name, Expr value) {
             this.name = name;
             this.value = value;
@@ -39,6 +51,9 @@ abstract class Expr {
         final Expr right;
         final Token operator;
 
+        // Rewritten in place as the interpreter learns the operand types.
+        BinaryOp op = BinaryOp.uninitialized();
+
         Binary(Expr left, Token operator, Expr right) {
             this.left = left;
             this.right = right;
@@ -55,6 +70,9 @@ abstract class Expr {
         final Token paren;
         final List<Expr> arguments;
 
+        // The value of a return statement, which the caller makes instead.
+        boolean tail;
+
         Call(Expr callee, Token paren, List<Expr> arguments) {
             this.callee = callee;
             this.paren = paren;
@@ -66,13 +84,53 @@ abstract class Expr {
         }
     }
 
+    // A comparison of a variable with a number, like 'i < 10', fused into
+    // one node by the Fuser. The original is run when the variable does not
+    // hold a number.
+    static class CompareConstant extends Expr {
+        final Binary comparison;
+        final Variable variable;
+        final double constant;
+
+        CompareConstant(Binary comparison, Variable variable, double constant) {
+            this.comparison = comparison;
+            this.variable = variable;
+            this.constant = constant;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCompareConstantExpr(this);
+        }
+    }
+
+    // An update of a field from its own value, like 'a.b = a.b + c', fused
+    // into one node by the Fuser. The object, a variable or 'this', is
+    // looked up once for both the get and the set.
+    static class FieldUpdate extends Expr {
+        final Set set;
+        final Get get;
+        final Binary operation;
+
+        FieldUpdate(Set set, Get get, Binary operation) {
+            this.set = set;
+            this.get = get;
+            this.operation = operation;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitFieldUpdateExpr(this);
+        }
+    }
+
     static class Get extends Expr {
         final Expr object;
         final Token name;
+        final InlineCache cache;
 
         Get(Expr object, Token name) {
             this.object = object;
             this.name = name;
+            this.cache = new InlineCache(name);
         }
 
         <R> R accept(Visitor<R> visitor) {
@@ -92,6 +150,76 @@ abstract class Expr {
         }
     }
 
+    // An assignment adding a number to the variable, like 'x = x + 1',
+    // fused into one node by the Fuser. Subtraction adds the negated
+    // number. The original is run when the variable does not hold a number.
+    static class Increment extends Expr {
+        final Assign assign;
+        final double amount;
+
+        Increment(Assign assign, double amount) {
+            this.assign = assign;
+            this.amount = amount;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIncrementExpr(this);
+        }
+    }
+
+    // A call the optimizer replaced with the body of the function it calls.
+    // The body runs for as long as the callee is still that function, and
+    // the original call is made otherwise.
+    static class Inline extends Expr {
+        final Expr call;
+        final Stmt.Function function;
+        final Expr body;
+
+        // Whether the value of the body is the result, rather than nil.
+        final boolean returns;
+
+        // The first slot of the caller's frame that holds the receiver and
+        // arguments, laid out as in the callee's own frame.
+        final int slot;
+
+        Inline(Expr call, Stmt.Function function, Expr body, boolean returns, int slot) {
+            this.call = call;
+            this.function = function;
+            this.body = body;
+            this.returns = returns;
+            this.slot = slot;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitInlineExpr(this);
+        }
+    }
+
+    // A call of a property, like 'object.name(arguments)'. Methods are called
+    // with the receiver directly instead of through a bound method.
+    static class Invoke extends Expr {
+        final Expr object;
+        final Token name;
+        final Token paren;
+        final List<Expr> arguments;
+        final InlineCache cache;
+
+        // The value of a return statement, which the caller makes instead.
+        boolean tail;
+
+        Invoke(Expr object, Token name, Token paren, List<Expr> arguments) {
+            this.object = object;
+            this.name = name;
+            this.paren = paren;
+            this.arguments = arguments;
+            this.cache = new InlineCache(name);
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitInvokeExpr(this);
+        }
+    }
+
     static class Literal extends Expr {
         final Object value;
 
@@ -124,11 +252,13 @@ abstract class Expr {
         final Expr object;
         final Token name;
         final Expr value;
+        final InlineCache cache;
 
         Set(Expr object, Token name, Expr value) {
             this.object = object;
             this.name = name;
             this.value = value;
+            this.cache = new InlineCache(name);
         }
 
         <R> R accept(Visitor<R> visitor) {
@@ -140,6 +270,12 @@ abstract class Expr {
         final Token keyword;
         final Token method;
 
+        // Where 'super' and the 'this' it goes with are.
+        Access access;
+        int slot;
+        Access thisAccess;
+        int thisSlot;
+
         Super(Token keyword, Token method) {
             this.keyword = keyword;
             this.method = method;
@@ -150,9 +286,37 @@ abstract class Expr {
         }
     }
 
+    // A call of a superclass method, like 'super.name(arguments)'.
+    static class SuperInvoke extends Expr {
+        final Token keyword;
+        final Token method;
+        final Token paren;
+        final List<Expr> arguments;
+
+        // Where 'super' and the 'this' it goes with are.
+        Access access;
+        int slot;
+        Access thisAccess;
+        int thisSlot;
+
+        SuperInvoke(Token keyword, Token method, Token paren, List<Expr> arguments) {
+            this.keyword = keyword;
+            this.method = method;
+            this.paren = paren;
+            this.arguments = arguments;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSuperInvokeExpr(this);
+        }
+    }
+
     static class This extends Expr {
         final Token keyword;
 
+        Access access;
+        int slot;
+
         This(Token keyword) {
             this.keyword = keyword;
         }
@@ -179,6 +343,12 @@ abstract class Expr {
     static class Variable extends Expr {
         final Token name;
 
+        Access access = Access.GLOBAL;
+        int slot;
+
+        // Reads and writes go through a Cell, see Resolver.
+        boolean boxed;
+
         Variable(Token name) {
             this.name = name;
         }
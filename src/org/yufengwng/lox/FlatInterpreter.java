@@ -0,0 +1,500 @@
+package org.yufengwng.lox;
+
+import static org.yufengwng.lox.FlatTree.*;
+import static org.yufengwng.lox.Values.isEqual;
+import static org.yufengwng.lox.Values.isString;
+import static org.yufengwng.lox.Values.isTruthy;
+import static org.yufengwng.lox.Values.stringify;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Runs a FlatTree by walking its code directly, switching on the kind of
+// each node. Functions, classes and instances are the same runtime objects
+// the other engines use: a function's body runs through the same hook the
+// closure engine compiles bodies for.
+class FlatInterpreter implements Engine {
+    private static final TokenType[] OPERATORS = TokenType.values();
+    private static final Access[] ACCESSES = Access.values();
+
+    private final Globals globals = new Globals();
+
+    // The tree that is running. Each REPL line is a tree of its own, so a
+    // function's body switches to the tree it was declared in.
+    private FlatTree tree;
+    private int[] code;
+    private Object[] constants;
+
+    // The value of the return statement that is completing, if any.
+    private Object returned = null;
+
+    FlatInterpreter() {
+        globals.define(NativeClock.NAME, new NativeClock());
+    }
+
+    @Override
+    public Globals globals() {
+        return globals;
+    }
+
+    @Override
+    public void interpret(List<Stmt> statements) {
+        Flattener flattener = new Flattener();
+        for (Stmt statement : statements) {
+            if (statement != null) flattener.add(statement);
+        }
+        run(flattener.finish());
+    }
+
+    void run(FlatTree tree) {
+        enter(tree);
+        try {
+            for (int i = 0; i < tree.count; i++) {
+                execute(tree.statements[i], null);
+            }
+        } catch (RuntimeError error) {
+            Reporter.runtimeError(error);
+        }
+    }
+
+    private void enter(FlatTree tree) {
+        this.tree = tree;
+        code = tree.code;
+        constants = tree.constants;
+    }
+
+    // Looked up only to report an error, as long lines take a search.
+    private int line(int node) {
+        return tree.lineOf(node);
+    }
+
+    private Completion executeAll(int list, Environment env) {
+        int count = code[list];
+        for (int i = 1; i <= count; i++) {
+            Completion completion = execute(code[list + i], env);
+            if (completion != Completion.NORMAL) return completion;
+        }
+        return Completion.NORMAL;
+    }
+
+    private Completion execute(int node, Environment env) {
+        switch (kind(code[node])) {
+            case EXPRESSION:
+                evaluate(code[node + 1], env);
+                return Completion.NORMAL;
+            case PRINT:
+                System.out.println(stringify(evaluate(code[node + 1], env)));
+                return Completion.NORMAL;
+            case VAR: {
+                int initializer = code[node + 3];
+                Object value = initializer < 0 ? null : evaluate(initializer, env);
+                define(env, code[node + 1], code[node + 2], value);
+                return Completion.NORMAL;
+            }
+            case BLOCK: {
+                int locals = code[node + 1];
+                if (locals >= 0) env = new Environment(Environment.NO_UPVALUES, locals);
+                return executeAll(node + 2, env);
+            }
+            case IF: {
+                if (isTruthy(evaluate(code[node + 1], env))) return execute(code[node + 2], env);
+                int otherwise = code[node + 3];
+                return otherwise < 0 ? Completion.NORMAL : execute(otherwise, env);
+            }
+            case WHILE: {
+                int condition = code[node + 1];
+                int body = code[node + 2];
+                while (isTruthy(evaluate(condition, env))) {
+                    Completion completion = execute(body, env);
+                    if (completion != Completion.NORMAL) return completion;
+                }
+                return Completion.NORMAL;
+            }
+            case FOR:
+                return executeFor(node, env);
+            case RETURN: {
+                int value = code[node + 1];
+                returned = value < 0 ? null : evaluate(value, env);
+                return Completion.RETURN;
+            }
+            case FUNCTION: {
+                int declared = code[node + 1];
+                int slot = code[node + 2];
+                if ((declared & BOXED) != 0) {
+                    Cell cell = new Cell(null);
+                    env.define(slot, cell);
+                    cell.value = function(node, env, false);
+                } else {
+                    define(env, declared, slot, function(node, env, false));
+                }
+                return Completion.NORMAL;
+            }
+            case CLASS:
+                executeClass(node, env);
+                return Completion.NORMAL;
+        }
+        throw new IllegalStateException("Unhandled statement kind " + kind(code[node]) + ".");
+    }
+
+    // A boxed local gets a fresh cell each time its declaration runs.
+    private void define(Environment env, int declared, int slot, Object value) {
+        if ((declared & GLOBAL) != 0) {
+            globals.define(slot, value);
+        } else if ((declared & BOXED) != 0) {
+            env.define(slot, new Cell(value));
+        } else {
+            env.define(slot, value);
+        }
+    }
+
+    private Completion executeFor(int node, Environment env) {
+        int locals = code[node + 1];
+        int step = code[node + 2];
+        int initializer = code[node + 3];
+        int condition = code[node + 4];
+        int increment = code[node + 5];
+        int body = code[node + 6];
+
+        if (locals >= 0) env = new Environment(Environment.NO_UPVALUES, locals);
+        if (initializer >= 0) execute(initializer, env);
+
+        if (step >= 0) {
+            int slot = code[initializer + 2];
+            Object start = env.values[slot];
+            if (start instanceof Double) {
+                return executeCounted(condition, body, slot, (double) start, (double) constants[step], env);
+            }
+        }
+
+        while (condition < 0 || isTruthy(evaluate(condition, env))) {
+            Completion completion = execute(body, env);
+            if (completion != Completion.NORMAL) return completion;
+            if (increment >= 0) evaluate(increment, env);
+        }
+        return Completion.NORMAL;
+    }
+
+    // Keeps the counter in a double, only storing it for the body to read.
+    private Completion executeCounted(int condition, int body, int slot, double counter,
+            double step, Environment env) {
+        TokenType operator = OPERATORS[code[condition + 1]];
+        int limit = code[condition + 3];
+        while (true) {
+            Object bound = evaluate(limit, env);
+            if (!(bound instanceof Double)) {
+                throw new RuntimeError(line(condition), "Operands must be numbers.");
+            }
+            if (!Values.compare(operator, counter, (double) bound)) break;
+
+            Completion completion = execute(body, env);
+            if (completion != Completion.NORMAL) return completion;
+            counter += step;
+            env.values[slot] = counter;
+        }
+        return Completion.NORMAL;
+    }
+
+    // Makes a closure of the function declared at the node. Its body is
+    // made once, the first time the declaration runs.
+    private LoxFunction function(int node, Environment env, boolean isInitializer) {
+        Stmt.Function declaration = (Stmt.Function) constants[code[node + 3]];
+        int index = code[node + 4];
+        ClosureCompiler.Body body = (ClosureCompiler.Body) constants[index];
+        if (body == null) {
+            FlatTree declaredIn = tree;
+            body = frame -> runBody(declaredIn, node + 5, frame);
+            constants[index] = body;
+        }
+        return new LoxFunction(declaration, body, Environment.capture(env, declaration.captures), isInitializer);
+    }
+
+    private Object runBody(FlatTree declaredIn, int list, Environment env) {
+        if (declaredIn == tree) return runBody(list, env);
+        FlatTree caller = tree;
+        enter(declaredIn);
+        try {
+            return runBody(list, env);
+        } finally {
+            enter(caller);
+        }
+    }
+
+    private Object runBody(int list, Environment env) {
+        if (executeAll(list, env) == Completion.RETURN) {
+            Object value = returned;
+            returned = null;
+            return value;
+        }
+        return null;
+    }
+
+    private void executeClass(int node, Environment env) {
+        int declared = code[node + 1];
+        int slot = code[node + 2];
+        String name = (String) constants[code[node + 3]];
+        int superclassNode = code[node + 4];
+        int superSlot = code[node + 5];
+        boolean global = (declared & GLOBAL) != 0;
+
+        Object superclass = null;
+        if (superclassNode >= 0) {
+            superclass = evaluate(superclassNode, env);
+            if (!(superclass instanceof LoxClass)) {
+                throw new RuntimeError(line(superclassNode), "Superclass must be a class.");
+            }
+        }
+
+        if (global) {
+            globals.define(slot, null);
+        } else {
+            env.define(slot, (declared & BOXED) != 0 ? new Cell(null) : null);
+        }
+
+        // At top level 'super' gets a frame of its own.
+        Environment methodEnv = env;
+        if (superclassNode >= 0) {
+            if (global) methodEnv = new Environment(Environment.NO_UPVALUES, 1);
+            methodEnv.define(superSlot, superclass);
+        }
+
+        Map<String, LoxFunction> methods = new HashMap<>();
+        int count = code[node + 6];
+        for (int i = 1; i <= count; i++) {
+            int method = code[node + 6 + i];
+            String methodName = ((Stmt.Function) constants[code[method + 3]]).name.lexeme();
+            methods.put(methodName, function(method, methodEnv, methodName.equals("init")));
+        }
+
+        LoxClass klass = new LoxClass(name, (LoxClass) superclass, methods);
+        if (global) {
+            globals.define(slot, klass);
+        } else if ((declared & BOXED) != 0) {
+            ((Cell) env.values[slot]).value = klass;
+        } else {
+            env.define(slot, klass);
+        }
+    }
+
+    private Object evaluate(int node, Environment env) {
+        int header = code[node];
+        switch (kind(header)) {
+            case LITERAL:
+                return constants[code[node + 1]];
+            case VARIABLE:
+                return lookup(code[node + 1], code[node + 2], node, env);
+            case ASSIGN: {
+                Object value = evaluate(code[node + 3], env);
+                assign(code[node + 1], code[node + 2], node, value, env);
+                return value;
+            }
+            case BINARY: {
+                Object left = evaluate(code[node + 2], env);
+                Object right = evaluate(code[node + 3], env);
+                return binary(OPERATORS[code[node + 1]], left, right, node);
+            }
+            case LOGICAL: {
+                Object left = evaluate(code[node + 2], env);
+                if (code[node + 1] != 0) {
+                    if (isTruthy(left)) return left;
+                } else {
+                    if (!isTruthy(left)) return left;
+                }
+                return evaluate(code[node + 3], env);
+            }
+            case UNARY: {
+                Object right = evaluate(code[node + 2], env);
+                if (code[node + 1] != 0) return !isTruthy(right);
+                if (!(right instanceof Double)) {
+                    throw new RuntimeError(line(node), "Operand must be a number.");
+                }
+                return - (double) right;
+            }
+            case CALL:
+                return call(node, env);
+            case GET: {
+                Object object = evaluate(code[node + 1], env);
+                if (!(object instanceof LoxInstance)) {
+                    throw new RuntimeError(line(node), "Only instances have properties.");
+                }
+                return ((InlineCache) constants[code[node + 2]]).get((LoxInstance) object);
+            }
+            case SET: {
+                Object object = evaluate(code[node + 1], env);
+                if (!(object instanceof LoxInstance)) {
+                    throw new RuntimeError(line(node), "Only instances have fields.");
+                }
+                Object value = evaluate(code[node + 2], env);
+                ((InlineCache) constants[code[node + 3]]).set((LoxInstance) object, value);
+                return value;
+            }
+            case INVOKE:
+                return invoke(node, env);
+            case THIS:
+                return lookup(code[node + 1], code[node + 2], node, env);
+            case SUPER: {
+                LoxFunction method = findSuperMethod(node, env);
+                LoxInstance object = (LoxInstance) lookup(code[node + 3], code[node + 4], node, env);
+                return method.bind(object);
+            }
+            case SUPER_INVOKE: {
+                LoxFunction method = findSuperMethod(node, env);
+                Object object = lookup(code[node + 3], code[node + 4], node, env);
+                List<Object> arguments = evaluateAll(node + 7, env);
+                checkCallable(method, node, arguments);
+                try {
+                    return method.invoke(null, object, arguments);
+                } catch (StackOverflowError error) {
+                    throw new RuntimeError(line(node), "Stack overflow.");
+                }
+            }
+        }
+        throw new IllegalStateException("Unhandled expression kind " + kind(header) + ".");
+    }
+
+    private Object lookup(int mode, int slot, int node, Environment env) {
+        switch (ACCESSES[mode & ~BOXED]) {
+            case LOCAL: {
+                Object value = env.values[slot];
+                return (mode & BOXED) != 0 ? ((Cell) value).value : value;
+            }
+            case UPVALUE: {
+                Object value = env.upvalues[slot];
+                return (mode & BOXED) != 0 ? ((Cell) value).value : value;
+            }
+            default: {
+                Object value = globals.get(slot);
+                if (value == Globals.UNDEFINED) throw undefined(slot, node);
+                return value;
+            }
+        }
+    }
+
+    // Assigned upvalues are always boxed, or the assignment would not be seen.
+    private void assign(int mode, int slot, int node, Object value, Environment env) {
+        switch (ACCESSES[mode & ~BOXED]) {
+            case LOCAL:
+                if ((mode & BOXED) != 0) {
+                    ((Cell) env.values[slot]).value = value;
+                } else {
+                    env.values[slot] = value;
+                }
+                return;
+            case UPVALUE:
+                ((Cell) env.upvalues[slot]).value = value;
+                return;
+            default:
+                if (globals.get(slot) == Globals.UNDEFINED) throw undefined(slot, node);
+                globals.set(slot, value);
+        }
+    }
+
+    private RuntimeError undefined(int slot, int node) {
+        return new RuntimeError(line(node), "Undefined variable '" + globals.nameOf(slot) + "'.");
+    }
+
+    private Object binary(TokenType operator, Object left, Object right, int node) {
+        if (left instanceof Double && right instanceof Double) {
+            double a = (double) left;
+            double b = (double) right;
+            switch (operator) {
+                case PLUS:          return a + b;
+                case MINUS:         return a - b;
+                case STAR:          return a * b;
+                case SLASH:         return a / b;
+                case LESS:          return a < b;
+                case LESS_EQ:       return a <= b;
+                case GREATER:       return a > b;
+                case GREATER_EQ:    return a >= b;
+                case EQ_EQ:         return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+                case NOT_EQ:        return Double.doubleToLongBits(a) != Double.doubleToLongBits(b);
+            }
+        }
+
+        switch (operator) {
+            case EQ_EQ:
+                return isEqual(left, right);
+            case NOT_EQ:
+                return !isEqual(left, right);
+            case PLUS:
+                if (isString(left) && isString(right)) return Rope.concat(left, right);
+                throw new RuntimeError(line(node), "Operands must be two numbers or two strings.");
+            default:
+                throw new RuntimeError(line(node), "Operands must be numbers.");
+        }
+    }
+
+    private List<Object> evaluateAll(int list, Environment env) {
+        int count = code[list];
+        List<Object> arguments = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            arguments.add(evaluate(code[list + i], env));
+        }
+        return arguments;
+    }
+
+    private Object call(int node, Environment env) {
+        Object callee = evaluate(code[node + 2], env);
+        List<Object> arguments = evaluateAll(node + 3, env);
+        LoxCallable function = checkCallable(callee, node, arguments);
+        if (code[node + 1] != 0 && function instanceof LoxFunction) {
+            return ((LoxFunction) function).tailCall(arguments, env);
+        }
+        try {
+            return function.call(null, arguments);
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(line(node), "Stack overflow.");
+        }
+    }
+
+    private Object invoke(int node, Environment env) {
+        Object receiver = evaluate(code[node + 3], env);
+        if (!(receiver instanceof LoxInstance)) {
+            throw new RuntimeError(code[node + 1], "Only instances have properties.");
+        }
+        Object callee = ((InlineCache) constants[code[node + 4]]).getForCall((LoxInstance) receiver);
+
+        List<Object> arguments = evaluateAll(node + 5, env);
+        LoxCallable function = checkCallable(callee, node, arguments);
+        try {
+            if (function instanceof LoxFunction) {
+                LoxFunction method = (LoxFunction) function;
+                boolean unbound = method.isUnbound();
+                if (code[node + 2] != 0) {
+                    return unbound ? method.tailInvoke(receiver, arguments, env)
+                                   : method.tailCall(arguments, env);
+                }
+                if (unbound) return method.invoke(null, receiver, arguments);
+            }
+            return function.call(null, arguments);
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(line(node), "Stack overflow.");
+        }
+    }
+
+    private LoxFunction findSuperMethod(int node, Environment env) {
+        LoxClass superclass = (LoxClass) lookup(code[node + 1], code[node + 2], node, env);
+        String name = (String) constants[code[node + 5]];
+        LoxFunction method = superclass.findMethod(name);
+        if (method == null) {
+            int line = kind(code[node]) == SUPER ? line(node) : code[node + 6];
+            throw new RuntimeError(line, "Undefined property '" + name + "'.");
+        }
+        return method;
+    }
+
+    private LoxCallable checkCallable(Object callee, int node, List<Object> arguments) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(line(node), "Can only call functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable) callee;
+        if (arguments.size() != function.arity()) {
+            throw new RuntimeError(line(node), "Expected "
+                    + function.arity() + " arguments but got "
+                    + arguments.size() + ".");
+        }
+        return function;
+    }
+}
@@ -0,0 +1,114 @@
+package org.yufengwng.lox;
+
+import java.util.Arrays;
+
+// A resolved program laid out in one int array instead of a node object
+// each, for the flat engine. A node is a run of words at some index of the
+// code: a header holding its kind and line, then its operands. Children are
+// operands holding the index of their own node, or -1 where one is missing,
+// and lists of them are a count followed by that many indices. Values that
+// do not fit a word, like literals, names and property caches, live in the
+// shared constant table.
+//
+// The layout of each kind, after the header:
+//
+//   LITERAL        constant
+//   VARIABLE       mode, slot
+//   ASSIGN         mode, slot, value
+//   BINARY         operator, left, right
+//   LOGICAL        or, left, right
+//   UNARY          bang, right
+//   CALL           tail, callee, count, arguments...
+//   GET            object, cache
+//   SET            object, value, cache
+//   INVOKE         name line, tail, object, cache, count, arguments...
+//   THIS           access, slot
+//   SUPER          access, slot, this access, this slot, name
+//   SUPER_INVOKE   access, slot, this access, this slot, name, name line, count, arguments...
+//
+//   EXPRESSION     expression
+//   PRINT          expression
+//   VAR            declared, slot, initializer
+//   BLOCK          locals or -1 to run inline, count, statements...
+//   IF             condition, then, otherwise
+//   WHILE          condition, body
+//   FOR            locals or -1, step or -1 unless counted, initializer, condition, increment, body
+//   RETURN         value
+//   FUNCTION       declared, slot, declaration, body, count, statements...
+//   CLASS          declared, slot, name, superclass, super slot, count, methods...
+//
+// A variable's mode is its Access ordinal, plus BOXED when it is kept in a
+// Cell. A declaration is declared as GLOBAL, BOXED, both or neither. The
+// lines of nodes that can fail at runtime are those of the token an error
+// is reported at, like the operator of a binary. A line too long for the
+// header is marked LONG_LINE there and kept in a side table by node.
+final class FlatTree {
+    static final int LITERAL = 1;
+    static final int VARIABLE = 2;
+    static final int ASSIGN = 3;
+    static final int BINARY = 4;
+    static final int LOGICAL = 5;
+    static final int UNARY = 6;
+    static final int CALL = 7;
+    static final int GET = 8;
+    static final int SET = 9;
+    static final int INVOKE = 10;
+    static final int THIS = 11;
+    static final int SUPER = 12;
+    static final int SUPER_INVOKE = 13;
+
+    static final int EXPRESSION = 14;
+    static final int PRINT = 15;
+    static final int VAR = 16;
+    static final int BLOCK = 17;
+    static final int IF = 18;
+    static final int WHILE = 19;
+    static final int FOR = 20;
+    static final int RETURN = 21;
+    static final int FUNCTION = 22;
+    static final int CLASS = 23;
+
+    static final int GLOBAL = 1;
+    static final int BOXED = 4;
+
+    static final int LONG_LINE = 0xFFFFFF;
+
+    final int[] code;
+    final Object[] constants;
+
+    // The top-level statements, in order.
+    final int[] statements;
+    final int count;
+
+    // The nodes with long lines, in order, and their lines.
+    private final int[] longLineNodes;
+    private final int[] longLines;
+
+    FlatTree(int[] code, Object[] constants, int[] statements, int count,
+            int[] longLineNodes, int[] longLines) {
+        this.code = code;
+        this.constants = constants;
+        this.statements = statements;
+        this.count = count;
+        this.longLineNodes = longLineNodes;
+        this.longLines = longLines;
+    }
+
+    int lineOf(int node) {
+        int line = line(code[node]);
+        if (line != LONG_LINE) return line;
+        return longLines[Arrays.binarySearch(longLineNodes, node)];
+    }
+
+    static int header(int kind, int line) {
+        return kind | Math.min(line, LONG_LINE) << 8;
+    }
+
+    static int kind(int header) {
+        return header & 0xFF;
+    }
+
+    static int line(int header) {
+        return header >>> 8;
+    }
+}
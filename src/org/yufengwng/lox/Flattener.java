@@ -0,0 +1,406 @@
+package org.yufengwng.lox;
+
+import static org.yufengwng.lox.FlatTree.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Lays out resolved statements in a FlatTree, see there for the layout.
+// Statements are added one at a time, so a caller can drop the tree of each
+// once it is flattened. Children are written before their parents.
+//
+// Fused and inlined nodes are flattened as the originals they stand for.
+class Flattener implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+    private int[] code = new int[1024];
+    private int size = 0;
+
+    private Object[] constants = new Object[256];
+    private int constantCount = 0;
+
+    // Literals and names, so each is in the table once. Caches and
+    // functions are never shared.
+    private final Map<Object, Integer> shared = new HashMap<>();
+
+    private int[] statements = new int[256];
+    private int count = 0;
+
+    private int[] longLineNodes = new int[0];
+    private int[] longLines = new int[0];
+    private int longLineCount = 0;
+
+    void add(Stmt statement) {
+        int node = flatten(statement);
+        if (count == statements.length) {
+            statements = Arrays.copyOf(statements, count * 2);
+        }
+        statements[count++] = node;
+    }
+
+    // Trims the arrays, which is never more to copy than growing them was.
+    FlatTree finish() {
+        return new FlatTree(Arrays.copyOf(code, size), Arrays.copyOf(constants, constantCount),
+                Arrays.copyOf(statements, count), count,
+                Arrays.copyOf(longLineNodes, longLineCount), Arrays.copyOf(longLines, longLineCount));
+    }
+
+    private int flatten(Stmt stmt) {
+        return stmt == null ? -1 : stmt.accept(this);
+    }
+
+    private int flatten(Expr expr) {
+        return expr == null ? -1 : expr.accept(this);
+    }
+
+    private int[] flattenAll(List<? extends Stmt> stmts) {
+        int[] nodes = new int[stmts.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = flatten(stmts.get(i));
+        }
+        return nodes;
+    }
+
+    private int[] flattenArguments(List<Expr> arguments) {
+        int[] nodes = new int[arguments.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = flatten(arguments.get(i));
+        }
+        return nodes;
+    }
+
+    private int node(int kind, int line) {
+        int node = size;
+        emit(header(kind, line));
+        if (line >= LONG_LINE) {
+            if (longLineCount == longLines.length) {
+                longLineNodes = Arrays.copyOf(longLineNodes, longLineCount * 2 + 16);
+                longLines = Arrays.copyOf(longLines, longLineCount * 2 + 16);
+            }
+            longLineNodes[longLineCount] = node;
+            longLines[longLineCount++] = line;
+        }
+        return node;
+    }
+
+    private void emit(int word) {
+        if (size == code.length) {
+            code = Arrays.copyOf(code, size * 2);
+        }
+        code[size++] = word;
+    }
+
+    private void emitAll(int[] nodes) {
+        emit(nodes.length);
+        for (int node : nodes) emit(node);
+    }
+
+    private int constant(Object value) {
+        Integer index = shared.get(value);
+        if (index == null) {
+            index = newConstant(value);
+            shared.put(value, index);
+        }
+        return index;
+    }
+
+    private int newConstant(Object value) {
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        return constantCount++;
+    }
+
+    private static int mode(Access access, boolean boxed) {
+        return access.ordinal() | (boxed ? BOXED : 0);
+    }
+
+    private static int declared(boolean global, boolean boxed) {
+        return (global ? GLOBAL : 0) | (boxed ? BOXED : 0);
+    }
+
+    // Keeps what LoxFunction needs of a declaration, without its body.
+    private static Stmt.Function withoutBody(Stmt.Function function) {
+        Stmt.Function copy = new Stmt.Function(function.name, function.params, Collections.emptyList());
+        copy.global = function.global;
+        copy.slot = function.slot;
+        copy.boxed = function.boxed;
+        copy.locals = function.locals;
+        copy.boxedParams = function.boxedParams;
+        copy.captures = function.captures;
+        copy.method = function.method;
+        return copy;
+    }
+
+    @Override
+    public Integer visitBlockStmt(Stmt.Block stmt) {
+        int[] body = flattenAll(stmt.statements);
+        int node = node(BLOCK, 0);
+        emit(stmt.inline ? -1 : stmt.locals);
+        emitAll(body);
+        return node;
+    }
+
+    @Override
+    public Integer visitClassStmt(Stmt.Class stmt) {
+        int superclass = flatten(stmt.superclass);
+        int[] methods = flattenAll(stmt.methods);
+        int node = node(CLASS, stmt.name.line);
+        emit(declared(stmt.global, stmt.boxed));
+        emit(stmt.slot);
+        emit(constant(stmt.name.lexeme()));
+        emit(superclass);
+        emit(stmt.superSlot);
+        emitAll(methods);
+        return node;
+    }
+
+    @Override
+    public Integer visitExpressionStmt(Stmt.Expression stmt) {
+        int expression = flatten(stmt.expression);
+        int node = node(EXPRESSION, 0);
+        emit(expression);
+        return node;
+    }
+
+    @Override
+    public Integer visitForStmt(Stmt.For stmt) {
+        int initializer = flatten(stmt.initializer);
+        int condition = flatten(stmt.condition);
+        int increment = flatten(stmt.increment);
+        int body = flatten(stmt.body);
+        int node = node(FOR, 0);
+        emit(stmt.inline ? -1 : stmt.locals);
+        emit(stmt.counted ? constant(stmt.step) : -1);
+        emit(initializer);
+        emit(condition);
+        emit(increment);
+        emit(body);
+        return node;
+    }
+
+    @Override
+    public Integer visitFunctionStmt(Stmt.Function stmt) {
+        int[] body = flattenAll(stmt.body);
+        int node = node(FUNCTION, stmt.name.line);
+        emit(declared(stmt.global, stmt.boxed));
+        emit(stmt.slot);
+        emit(newConstant(withoutBody(stmt)));
+        emit(newConstant(null));
+        emitAll(body);
+        return node;
+    }
+
+    @Override
+    public Integer visitIfStmt(Stmt.If stmt) {
+        int condition = flatten(stmt.condition);
+        int then = flatten(stmt.then);
+        int otherwise = flatten(stmt.otherwise);
+        int node = node(IF, 0);
+        emit(condition);
+        emit(then);
+        emit(otherwise);
+        return node;
+    }
+
+    @Override
+    public Integer visitPrintStmt(Stmt.Print stmt) {
+        int expression = flatten(stmt.expression);
+        int node = node(PRINT, 0);
+        emit(expression);
+        return node;
+    }
+
+    @Override
+    public Integer visitReturnStmt(Stmt.Return stmt) {
+        int value = flatten(stmt.value);
+        int node = node(RETURN, stmt.keyword.line);
+        emit(value);
+        return node;
+    }
+
+    @Override
+    public Integer visitReturnBinaryStmt(Stmt.ReturnBinary stmt) {
+        return flatten(stmt.original);
+    }
+
+    @Override
+    public Integer visitVarStmt(Stmt.Var stmt) {
+        int initializer = flatten(stmt.initializer);
+        int node = node(VAR, stmt.name.line);
+        emit(declared(stmt.global, stmt.boxed));
+        emit(stmt.slot);
+        emit(initializer);
+        return node;
+    }
+
+    @Override
+    public Integer visitWhileStmt(Stmt.While stmt) {
+        int condition = flatten(stmt.condition);
+        int body = flatten(stmt.body);
+        int node = node(WHILE, 0);
+        emit(condition);
+        emit(body);
+        return node;
+    }
+
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+        int value = flatten(expr.value);
+        int node = node(ASSIGN, expr.name.line);
+        emit(mode(expr.access, expr.boxed));
+        emit(expr.slot);
+        emit(value);
+        return node;
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+        int left = flatten(expr.left);
+        int right = flatten(expr.right);
+        int node = node(BINARY, expr.operator.line);
+        emit(expr.operator.type.ordinal());
+        emit(left);
+        emit(right);
+        return node;
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr) {
+        int callee = flatten(expr.callee);
+        int[] arguments = flattenArguments(expr.arguments);
+        int node = node(CALL, expr.paren.line);
+        emit(expr.tail ? 1 : 0);
+        emit(callee);
+        emitAll(arguments);
+        return node;
+    }
+
+    @Override
+    public Integer visitCompareConstantExpr(Expr.CompareConstant expr) {
+        return flatten(expr.comparison);
+    }
+
+    @Override
+    public Integer visitFieldUpdateExpr(Expr.FieldUpdate expr) {
+        return flatten(expr.set);
+    }
+
+    @Override
+    public Integer visitGetExpr(Expr.Get expr) {
+        int object = flatten(expr.object);
+        int node = node(GET, expr.name.line);
+        emit(object);
+        emit(newConstant(expr.cache));
+        return node;
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+        return flatten(expr.expression);
+    }
+
+    @Override
+    public Integer visitIncrementExpr(Expr.Increment expr) {
+        return flatten(expr.assign);
+    }
+
+    @Override
+    public Integer visitInlineExpr(Expr.Inline expr) {
+        return flatten(expr.call);
+    }
+
+    @Override
+    public Integer visitInvokeExpr(Expr.Invoke expr) {
+        int object = flatten(expr.object);
+        int[] arguments = flattenArguments(expr.arguments);
+        int node = node(INVOKE, expr.paren.line);
+        emit(expr.name.line);
+        emit(expr.tail ? 1 : 0);
+        emit(object);
+        emit(newConstant(expr.cache));
+        emitAll(arguments);
+        return node;
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+        int node = node(LITERAL, 0);
+        emit(constant(expr.value));
+        return node;
+    }
+
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+        int left = flatten(expr.left);
+        int right = flatten(expr.right);
+        int node = node(LOGICAL, expr.operator.line);
+        emit(expr.operator.type == TokenType.OR ? 1 : 0);
+        emit(left);
+        emit(right);
+        return node;
+    }
+
+    @Override
+    public Integer visitSetExpr(Expr.Set expr) {
+        int object = flatten(expr.object);
+        int value = flatten(expr.value);
+        int node = node(SET, expr.name.line);
+        emit(object);
+        emit(value);
+        emit(newConstant(expr.cache));
+        return node;
+    }
+
+    @Override
+    public Integer visitSuperExpr(Expr.Super expr) {
+        int node = node(SUPER, expr.method.line);
+        emit(expr.access.ordinal());
+        emit(expr.slot);
+        emit(expr.thisAccess.ordinal());
+        emit(expr.thisSlot);
+        emit(constant(expr.method.lexeme()));
+        return node;
+    }
+
+    @Override
+    public Integer visitSuperInvokeExpr(Expr.SuperInvoke expr) {
+        int[] arguments = flattenArguments(expr.arguments);
+        int node = node(SUPER_INVOKE, expr.paren.line);
+        emit(expr.access.ordinal());
+        emit(expr.slot);
+        emit(expr.thisAccess.ordinal());
+        emit(expr.thisSlot);
+        emit(constant(expr.method.lexeme()));
+        emit(expr.method.line);
+        emitAll(arguments);
+        return node;
+    }
+
+    @Override
+    public Integer visitThisExpr(Expr.This expr) {
+        int node = node(THIS, expr.keyword.line);
+        emit(expr.access.ordinal());
+        emit(expr.slot);
+        return node;
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+        int right = flatten(expr.right);
+        int node = node(UNARY, expr.operator.line);
+        emit(expr.operator.type == TokenType.BANG ? 1 : 0);
+        emit(right);
+        return node;
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+        int node = node(VARIABLE, expr.name.line);
+        emit(mode(expr.access, expr.boxed));
+        emit(expr.slot);
+        return node;
+    }
+}
@@ -0,0 +1,434 @@
+package org.yufengwng.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Replaces the most common patterns of the optimized tree with fused nodes,
+// which engines run in one step instead of one visit per node:
+//
+//   x = x + c          Expr.Increment, also for 'x = x - c'
+//   i < c              Expr.CompareConstant, for any ordering comparison
+//   a.b = a.b + c      Expr.FieldUpdate, for any binary operator
+//   return a + b       Stmt.ReturnBinary, when both operands are variables
+//                      or literals
+//   !(x == y)          'x != y', and '!(x != y)' becomes 'x == y'
+//
+// Fused nodes keep the nodes they replace, for engines that compile to
+// bytecode and have no dispatch to save. The conditions and increments of
+// counted loops are left alone, since engines read them by their shape.
+//
+// It runs after the optimizer, so inlining sees the plain tree. Like the
+// optimizer, it rebuilds nodes whose children change and updates function
+// bodies in place.
+class Fuser implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    private static final int REPORTED_PATTERNS = 15;
+
+    private final boolean report;
+
+    // Sites fused by pattern, and when reporting, how often each shape of
+    // node with children occurs, as its kind with the kinds of its children.
+    private final Map<String, Integer> fused = new LinkedHashMap<>();
+    private final Map<String, Integer> shapes = new HashMap<>();
+
+    Fuser(boolean report) {
+        this.report = report;
+        fused.put("x = x + c", 0);
+        fused.put("i < c", 0);
+        fused.put("a.b = a.b + c", 0);
+        fused.put("return a + b", 0);
+        fused.put("!(x == y)", 0);
+    }
+
+    List<Stmt> fuse(List<Stmt> statements) {
+        List<Stmt> result = fuseStatements(statements);
+        if (report) printReport();
+        return result;
+    }
+
+    private void printReport() {
+        for (Map.Entry<String, Integer> entry : fused.entrySet()) {
+            System.err.println(String.format("%6d fused %s", entry.getValue(), entry.getKey()));
+        }
+
+        List<Map.Entry<String, Integer>> counted = new ArrayList<>(shapes.entrySet());
+        counted.sort((a, b) -> a.getValue().equals(b.getValue())
+                ? a.getKey().compareTo(b.getKey())
+                : b.getValue() - a.getValue());
+        System.err.println("node patterns:");
+        for (int i = 0; i < counted.size() && i < REPORTED_PATTERNS; i++) {
+            Map.Entry<String, Integer> entry = counted.get(i);
+            System.err.println(String.format("%6d %s", entry.getValue(), entry.getKey()));
+        }
+    }
+
+    private void fused(String pattern) {
+        fused.put(pattern, fused.get(pattern) + 1);
+    }
+
+    private void shape(Object node, Object... children) {
+        if (!report) return;
+        StringBuilder builder = new StringBuilder(kind(node)).append("(");
+        for (int i = 0; i < children.length; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(kind(children[i]));
+        }
+        builder.append(")");
+        shapes.merge(builder.toString(), 1, Integer::sum);
+    }
+
+    private static String kind(Object node) {
+        if (node == null) return "_";
+        return node.getClass().getSimpleName();
+    }
+
+    private List<Stmt> fuseStatements(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>();
+        for (Stmt statement : statements) {
+            result.add(fuse(statement));
+        }
+        return result;
+    }
+
+    private List<Expr> fuseAll(List<Expr> exprs) {
+        List<Expr> result = new ArrayList<>();
+        for (Expr expr : exprs) {
+            result.add(fuse(expr));
+        }
+        return result;
+    }
+
+    private Stmt fuse(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    private Expr fuse(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    private void fuseBody(Stmt.Function function) {
+        List<Stmt> body = fuseStatements(function.body);
+        function.body.clear();
+        function.body.addAll(body);
+    }
+
+    private static boolean isNumber(Expr expr) {
+        return expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double;
+    }
+
+    private static boolean isLeaf(Expr expr) {
+        return expr instanceof Expr.Variable || expr instanceof Expr.Literal;
+    }
+
+    private static boolean isVariable(Expr expr, Expr.Assign assign) {
+        if (!(expr instanceof Expr.Variable)) return false;
+        Expr.Variable variable = (Expr.Variable) expr;
+        return variable.access == assign.access && variable.slot == assign.slot
+            && variable.name.lexeme().equals(assign.name.lexeme());
+    }
+
+    // Whether two objects of a get and set are sure to be the same: 'this',
+    // or reads of the same variable.
+    private static boolean isSameObject(Expr a, Expr b) {
+        if (a instanceof Expr.This && b instanceof Expr.This) return true;
+        if (!(a instanceof Expr.Variable) || !(b instanceof Expr.Variable)) return false;
+        Expr.Variable x = (Expr.Variable) a;
+        Expr.Variable y = (Expr.Variable) b;
+        return x.access == y.access && x.slot == y.slot && x.name.lexeme().equals(y.name.lexeme());
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        Stmt.Block block = new Stmt.Block(fuseStatements(stmt.statements));
+        block.locals = stmt.locals;
+        block.inline = stmt.inline;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.methods) {
+            fuseBody(method);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        shape(stmt, stmt.expression);
+        Expr expression = fuse(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        shape(stmt, stmt.initializer, stmt.condition, stmt.increment, stmt.body);
+        Stmt initializer = fuse(stmt.initializer);
+        Expr condition = stmt.counted ? stmt.condition : fuse(stmt.condition);
+        Expr increment = stmt.counted ? stmt.increment : fuse(stmt.increment);
+
+        Stmt.For loop = new Stmt.For(initializer, condition, increment, fuse(stmt.body));
+        loop.locals = stmt.locals;
+        loop.inline = stmt.inline;
+        loop.counted = stmt.counted;
+        loop.step = stmt.step;
+        return loop;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        fuseBody(stmt);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        shape(stmt, stmt.condition, stmt.then, stmt.otherwise);
+        return new Stmt.If(fuse(stmt.condition), fuse(stmt.then), fuse(stmt.otherwise));
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        shape(stmt, stmt.expression);
+        Expr expression = fuse(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        shape(stmt, stmt.value);
+        if (stmt.value == null) return stmt;
+
+        Expr value = fuse(stmt.value);
+        Stmt.Return result = value == stmt.value ? stmt : new Stmt.Return(stmt.keyword, value);
+        if (value instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) value;
+            if (isLeaf(binary.left) && isLeaf(binary.right)) {
+                fused("return a + b");
+                return new Stmt.ReturnBinary(result, binary);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Stmt visitReturnBinaryStmt(Stmt.ReturnBinary stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        shape(stmt, stmt.initializer);
+        Expr initializer = fuse(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+
+        Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+        var.global = stmt.global;
+        var.slot = stmt.slot;
+        var.boxed = stmt.boxed;
+        var.uses = stmt.uses;
+        return var;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        shape(stmt, stmt.condition, stmt.body);
+        return new Stmt.While(fuse(stmt.condition), fuse(stmt.body));
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        shape(expr, expr.value);
+        Expr value = fuse(expr.value);
+        Expr.Assign assign = expr;
+        if (value != expr.value) {
+            assign = new Expr.Assign(expr.name, value);
+            assign.access = expr.access;
+            assign.slot = expr.slot;
+            assign.boxed = expr.boxed;
+        }
+
+        if (value instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) value;
+            TokenType op = binary.operator.type;
+            if ((op == TokenType.PLUS || op == TokenType.MINUS)
+                    && isVariable(binary.left, assign) && isNumber(binary.right)) {
+                double amount = (double) ((Expr.Literal) binary.right).value;
+                fused("x = x + c");
+                return new Expr.Increment(assign, op == TokenType.MINUS ? -amount : amount);
+            }
+        }
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        shape(expr, expr.left, expr.right);
+        Expr left = fuse(expr.left);
+        Expr right = fuse(expr.right);
+        Expr.Binary binary = expr;
+        if (left != expr.left || right != expr.right) binary = new Expr.Binary(left, expr.operator, right);
+
+        switch (expr.operator.type) {
+            case LESS: case LESS_EQ: case GREATER: case GREATER_EQ:
+                if (left instanceof Expr.Variable && isNumber(right)) {
+                    fused("i < c");
+                    double constant = (double) ((Expr.Literal) right).value;
+                    return new Expr.CompareConstant(binary, (Expr.Variable) left, constant);
+                }
+                break;
+            default:
+                break;
+        }
+        return binary;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        shape(expr, expr.callee);
+        Expr.Call call = new Expr.Call(fuse(expr.callee), expr.paren, fuseAll(expr.arguments));
+        call.tail = expr.tail;
+        return call;
+    }
+
+    @Override
+    public Expr visitCompareConstantExpr(Expr.CompareConstant expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitFieldUpdateExpr(Expr.FieldUpdate expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        shape(expr, expr.object);
+        Expr object = fuse(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        shape(expr, expr.expression);
+        Expr expression = fuse(expr.expression);
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitIncrementExpr(Expr.Increment expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitInlineExpr(Expr.Inline expr) {
+        shape(expr, expr.body);
+        Expr body = fuse(expr.body);
+        if (body == expr.body) return expr;
+        return new Expr.Inline(expr.call, expr.function, body, expr.returns, expr.slot);
+    }
+
+    @Override
+    public Expr visitInvokeExpr(Expr.Invoke expr) {
+        shape(expr, expr.object);
+        Expr.Invoke invoke = new Expr.Invoke(fuse(expr.object), expr.name, expr.paren,
+                fuseAll(expr.arguments));
+        invoke.tail = expr.tail;
+        return invoke;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        shape(expr, expr.left, expr.right);
+        Expr left = fuse(expr.left);
+        Expr right = fuse(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        shape(expr, expr.object, expr.value);
+        Expr object = fuse(expr.object);
+        Expr value = fuse(expr.value);
+        Expr.Set set = expr;
+        if (object != expr.object || value != expr.value) set = new Expr.Set(object, expr.name, value);
+
+        if (value instanceof Expr.Binary) {
+            Expr.Binary operation = (Expr.Binary) value;
+            if (operation.left instanceof Expr.Get) {
+                Expr.Get get = (Expr.Get) operation.left;
+                if (get.name.lexeme().equals(expr.name.lexeme()) && isSameObject(get.object, object)) {
+                    fused("a.b = a.b + c");
+                    return new Expr.FieldUpdate(set, get, operation);
+                }
+            }
+        }
+        return set;
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitSuperInvokeExpr(Expr.SuperInvoke expr) {
+        Expr.SuperInvoke invoke = new Expr.SuperInvoke(expr.keyword, expr.method, expr.paren,
+                fuseAll(expr.arguments));
+        invoke.access = expr.access;
+        invoke.slot = expr.slot;
+        invoke.thisAccess = expr.thisAccess;
+        invoke.thisSlot = expr.thisSlot;
+        return invoke;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        shape(expr, expr.right);
+        Expr right = fuse(expr.right);
+
+        if (expr.operator.type == TokenType.BANG) {
+            Expr operand = right;
+            while (operand instanceof Expr.Grouping) operand = ((Expr.Grouping) operand).expression;
+            if (operand instanceof Expr.Binary) {
+                Expr.Binary equality = (Expr.Binary) operand;
+                Token operator = equality.operator;
+                Token negated = null;
+                if (operator.type == TokenType.EQ_EQ) {
+                    negated = new Token(TokenType.NOT_EQ, null, "!=", operator.line);
+                } else if (operator.type == TokenType.NOT_EQ) {
+                    negated = new Token(TokenType.EQ_EQ, null, "==", operator.line);
+                }
+                if (negated != null) {
+                    fused("!(x == y)");
+                    return new Expr.Binary(equality.left, negated, equality.right);
+                }
+            }
+        }
+
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+}
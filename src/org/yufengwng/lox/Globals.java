@@ -0,0 +1,69 @@
+package org.yufengwng.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+class Globals {
+    // Marks a slot whose name has been referenced but not yet defined.
+    static final Object UNDEFINED = new Object();
+
+    private final Map<String, Integer> indices = new HashMap<>();
+    private String[] names = new String[64];
+    private Object[] values = new Object[64];
+
+    // Gets the slot for the global with the given name, allocating one on first use.
+    int indexOf(String name) {
+        Integer index = indices.get(name);
+        if (index != null) {
+            return index;
+        }
+
+        index = indices.size();
+        if (index == values.length) {
+            names = Arrays.copyOf(names, names.length * 2);
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        names[index] = name;
+        values[index] = UNDEFINED;
+        indices.put(name, index);
+        return index;
+    }
+
+    void define(String name, Object value) {
+        define(indexOf(name), value);
+    }
+
+    void define(int index, Object value) {
+        values[index] = value;
+    }
+
+    Object fetch(int index, Token name) {
+        Object value = values[index];
+        if (value == UNDEFINED) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme() + "'.");
+        }
+        return value;
+    }
+
+    void assign(int index, Token name, Object value) {
+        if (values[index] == UNDEFINED) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme() + "'.");
+        }
+        values[index] = value;
+    }
+
+    // Raw access for engines that report undefined variables themselves.
+
+    Object get(int index) {
+        return values[index];
+    }
+
+    void set(int index, Object value) {
+        values[index] = value;
+    }
+
+    String nameOf(int index) {
+        return names[index];
+    }
+}
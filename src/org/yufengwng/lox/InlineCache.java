@@ -0,0 +1,131 @@
+package org.yufengwng.lox;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// Remembers what a property access site resolved to for the last few
+// receiver shapes it saw. A shape fixes both the class and the field
+// layout, so a hit goes straight to a field slot, a method, or for a set
+// site the transition that adds the field. Sites that see more shapes than
+// fit stop caching new ones.
+class InlineCache {
+    private static final int MAX_ENTRIES = 4;
+
+    // Every site that has run, for dumping statistics.
+    private static final List<InlineCache> sites = new ArrayList<>();
+
+    private final Token name;
+    private final Shape[] shapes = new Shape[MAX_ENTRIES];
+    private final int[] slots = new int[MAX_ENTRIES];
+    private final LoxFunction[] methods = new LoxFunction[MAX_ENTRIES];
+    private final Shape[] transitions = new Shape[MAX_ENTRIES];
+    private int size = 0;
+    private boolean megamorphic = false;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    InlineCache(Token name) {
+        this.name = name;
+    }
+
+    Object get(LoxInstance instance) {
+        Object value = getForCall(instance);
+        if (value instanceof LoxFunction && ((LoxFunction) value).isUnbound()) {
+            return ((LoxFunction) value).bind(instance);
+        }
+        return value;
+    }
+
+    // Like get(), but leaves methods unbound for a caller that passes the
+    // receiver itself.
+    Object getForCall(LoxInstance instance) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                hits += 1;
+                return resolved(instance, slots[i], methods[i]);
+            }
+        }
+
+        miss();
+        int slot = shape.indexOf(name.lexeme());
+        LoxFunction method = slot < 0 ? shape.klass.findMethod(name.lexeme()) : null;
+        add(shape, slot, method, null);
+        return resolved(instance, slot, method);
+    }
+
+    private Object resolved(LoxInstance instance, int slot, LoxFunction method) {
+        if (slot >= 0) return instance.values[slot];
+        if (method != null) return method;
+        throw new RuntimeError(name, "Undefined property '" + name.lexeme() + "'.");
+    }
+
+    void set(LoxInstance instance, Object value) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                hits += 1;
+                store(instance, slots[i], transitions[i], value);
+                return;
+            }
+        }
+
+        miss();
+        int slot = shape.indexOf(name.lexeme());
+        Shape next = null;
+        if (slot < 0) {
+            next = shape.with(name.lexeme());
+            slot = shape.size;
+        }
+        add(shape, slot, null, next);
+        store(instance, slot, next, value);
+    }
+
+    private void store(LoxInstance instance, int slot, Shape next, Object value) {
+        if (next == null) {
+            instance.values[slot] = value;
+        } else {
+            instance.addField(next, slot, value);
+        }
+    }
+
+    private void miss() {
+        if (misses == 0) sites.add(this);
+        misses += 1;
+    }
+
+    private void add(Shape shape, int slot, LoxFunction method, Shape next) {
+        if (size == MAX_ENTRIES) {
+            megamorphic = true;
+            return;
+        }
+        shapes[size] = shape;
+        slots[size] = slot;
+        methods[size] = method;
+        transitions[size] = next;
+        size += 1;
+    }
+
+    private String state() {
+        if (megamorphic) return "megamorphic";
+        if (size > 1)    return "polymorphic";
+        return "monomorphic";
+    }
+
+    static void dumpStats() {
+        List<InlineCache> sorted = new ArrayList<>(sites);
+        sorted.sort(Comparator.comparingInt(cache -> cache.name.line));
+
+        long hits = 0;
+        long misses = 0;
+        for (InlineCache cache : sorted) {
+            System.err.println(String.format("[line %d] .%s: %d hits, %d misses, %s",
+                        cache.name.line, cache.name.lexeme(), cache.hits, cache.misses, cache.state()));
+            hits += cache.hits;
+            misses += cache.misses;
+        }
+        System.err.println(String.format("%d sites: %d hits, %d misses", sorted.size(), hits, misses));
+    }
+}
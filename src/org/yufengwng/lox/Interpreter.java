@@ -1,63 +1,221 @@
 package org.yufengwng.lox;
 
+import static org.yufengwng.lox.Values.isTruthy;
+import static org.yufengwng.lox.Values.stringify;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
-    private final Environment globals = new Environment();
-    private final Map<Expr, Integer> locals = new HashMap<>();
+class Interpreter implements Engine, Expr.Visitor<Object>, Stmt.Visitor<Completion> {
+    final Globals globals = new Globals();
+
+    // Compiles hot functions, or null to only ever walk the tree.
+    final Jit jit;
+
+    // The innermost local scope, null while running top-level code.
+    private Environment current = null;
 
-    private Environment current = globals;
+    // The function whose body is running, null for top-level code.
+    private Stmt.Function running = null;
+
+    // The value of the return statement that is completing, if any.
+    private Object returned = null;
 
     Interpreter() {
+        this(Jit.DEFAULT_THRESHOLD);
+    }
+
+    // A negative threshold turns the JIT off.
+    Interpreter(int jitThreshold) {
+        this.jit = jitThreshold < 0 ? null : new Jit(this, jitThreshold);
         globals.define(NativeClock.NAME, new NativeClock());
     }
 
+    @Override
+    public Globals globals() {
+        return globals;
+    }
+
+    @Override
     public void interpret(List<Stmt> statements) {
         try {
-            statements.stream()
-                .filter(Objects::nonNull)
-                .forEach(stmt -> execute(stmt));
+            executeStatements(statements);
         } catch (RuntimeError error) {
             Reporter.runtimeError(error);
         }
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    // Thrown when an operand that has always been a number turns out not
+    // to be one. Carries the value that was computed so the caller can
+    // finish on the generic path without evaluating anything twice.
+    @SuppressWarnings("serial")
+    private static class NotANumber extends RuntimeException {
+        final Object value;
+
+        NotANumber(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    // Evaluates an operand of a number-only operation without boxing the
+    // intermediate results of nested arithmetic.
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            if (binary.op instanceof BinaryOp.Arithmetic) {
+                return evaluateArithmetic(binary, (BinaryOp.Arithmetic) binary.op);
+            }
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateDouble(((Expr.Grouping) expr).expression);
+        }
+
+        Object value = evaluate(expr);
+        if (value instanceof Double) return (double) value;
+        throw new NotANumber(value);
+    }
+
+    // Evaluates an if or while condition. Comparisons of numbers branch on
+    // the primitive result instead of a boxed Boolean.
+    private boolean evaluateCondition(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            if (binary.op instanceof BinaryOp.Comparison) {
+                return compareNumbers(binary, (BinaryOp.Comparison) binary.op);
+            }
+        } else if (expr instanceof Expr.CompareConstant) {
+            return compareConstant((Expr.CompareConstant) expr);
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateCondition(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical) expr;
+            if (logical.operator.type == TokenType.OR) {
+                return evaluateCondition(logical.left) || evaluateCondition(logical.right);
+            }
+            return evaluateCondition(logical.left) && evaluateCondition(logical.right);
+        }
+        return isTruthy(evaluate(expr));
+    }
+
+    private double evaluateArithmetic(Expr.Binary expr, BinaryOp.Arithmetic op) {
+        double left;
+        try {
+            left = evaluateDouble(expr.left);
+        } catch (NotANumber miss) {
+            return generic(expr, miss.value, evaluate(expr.right));
+        }
+
+        double right;
+        try {
+            right = evaluateDouble(expr.right);
+        } catch (NotANumber miss) {
+            return generic(expr, left, miss.value);
+        }
+
+        return op.apply(left, right);
+    }
+
+    private boolean compareNumbers(Expr.Binary expr, BinaryOp.Comparison op) {
+        double left;
+        try {
+            left = evaluateDouble(expr.left);
+        } catch (NotANumber miss) {
+            return (Boolean) expr.op.execute(expr, miss.value, evaluate(expr.right));
+        }
+
+        double right;
+        try {
+            right = evaluateDouble(expr.right);
+        } catch (NotANumber miss) {
+            return (Boolean) expr.op.execute(expr, left, miss.value);
+        }
+
+        return op.apply(left, right);
+    }
+
+    // Runs the node's own operation on operands that were not both numbers,
+    // which despecializes it so later runs skip the unboxed path.
+    private static double generic(Expr.Binary expr, Object left, Object right) {
+        Object value = expr.op.execute(expr, left, right);
+        if (value instanceof Double) return (double) value;
+        throw new NotANumber(value);
+    }
+
+    Completion executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.current;
         try {
             this.current = environment;
-            statements.stream()
-                .filter(Objects::nonNull)
-                .forEach(stmt -> execute(stmt));
+            return executeStatements(statements);
         } finally {
             this.current = previous;
         }
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    private Completion executeStatements(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement == null) continue;
+            Completion completion = execute(statement);
+            if (completion != Completion.NORMAL) return completion;
+        }
+        return Completion.NORMAL;
+    }
+
+    // Runs a function body and returns the function's result.
+    Object executeBody(Stmt.Function function, Environment environment) {
+        Stmt.Function previous = this.running;
+        try {
+            this.running = function;
+            if (executeBlock(function.body, environment) == Completion.RETURN) {
+                Object value = returned;
+                returned = null;
+                return value;
+            }
+            return null;
+        } finally {
+            this.running = previous;
+        }
+    }
+
+    // A boxed local gets a fresh cell each time its declaration runs, so
+    // closures from different runs do not share it.
+    private void define(boolean global, boolean boxed, int slot, Object value) {
+        if (global) {
+            globals.define(slot, value);
+        } else {
+            current.define(slot, boxed ? new Cell(value) : value);
+        }
+    }
+
+    // Stores the value of a function or class defined just before, which
+    // closures may have captured already.
+    private void initialize(boolean global, boolean boxed, int slot, Object value) {
+        if (global) {
+            globals.define(slot, value);
+        } else if (boxed) {
+            ((Cell) current.values[slot]).value = value;
+        } else {
+            current.define(slot, value);
+        }
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(current));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.inline) return executeStatements(stmt.statements);
+        return executeBlock(stmt.statements, new Environment(Environment.NO_UPVALUES, stmt.locals));
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -66,174 +224,273 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
             }
         }
 
-        current.define(stmt.name.lexeme, null);
+        define(stmt.global, stmt.boxed, stmt.slot, null);
 
+        // At top level 'super' gets a frame of its own for the methods to
+        // capture from, elsewhere a slot in the enclosing one.
+        Environment enclosing = current;
         if (stmt.superclass != null) {
-            current = new Environment(current);
-            current.define("super", superclass);
+            if (stmt.global) current = new Environment(Environment.NO_UPVALUES, 1);
+            current.define(stmt.superSlot, superclass);
         }
 
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            boolean isInitializer = method.name.lexeme.equals("init");
-            LoxFunction function = new LoxFunction(method, current, isInitializer);
-            methods.put(method.name.lexeme, function);
+            boolean isInitializer = method.name.lexeme().equals("init");
+            LoxFunction function = new LoxFunction(method, capture(method), isInitializer);
+            methods.put(method.name.lexeme(), function);
         }
 
-        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
-
-        if (stmt.superclass != null) {
-            current = current.enclosing;
-        }
+        LoxClass klass = new LoxClass(stmt.name.lexeme(), (LoxClass) superclass, methods);
 
-        current.assign(stmt.name, klass);
-        return null;
+        current = enclosing;
+        initialize(stmt.global, stmt.boxed, stmt.slot, klass);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, current, false);
-        current.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitForStmt(Stmt.For stmt) {
+        if (stmt.inline) return executeFor(stmt);
+
+        Environment previous = current;
+        try {
+            current = new Environment(Environment.NO_UPVALUES, stmt.locals);
+            return executeFor(stmt);
+        } finally {
+            current = previous;
+        }
+    }
+
+    private Completion executeFor(Stmt.For stmt) {
+        if (stmt.initializer != null) execute(stmt.initializer);
+
+        if (stmt.counted) {
+            Object start = current.values[((Stmt.Var) stmt.initializer).slot];
+            if (start instanceof Double) return executeCounted(stmt, (double) start);
+        }
+
+        while (stmt.condition == null || evaluateCondition(stmt.condition)) {
+            Completion completion = execute(stmt.body);
+            if (completion != Completion.NORMAL) return completion;
+            if (stmt.increment != null) evaluate(stmt.increment);
+            if (jit != null && running != null) jit.backEdge(running);
+        }
+        return Completion.NORMAL;
+    }
+
+    // Keeps the counter in a double, only storing it for the body to read.
+    private Completion executeCounted(Stmt.For stmt, double counter) {
+        int slot = ((Stmt.Var) stmt.initializer).slot;
+        Expr.Binary condition = (Expr.Binary) stmt.condition;
+        while (true) {
+            double limit;
+            try {
+                limit = evaluateDouble(condition.right);
+            } catch (NotANumber miss) {
+                throw new RuntimeError(condition.operator, "Operands must be numbers.");
+            }
+            if (!Values.compare(condition.operator.type, counter, limit)) break;
+
+            Completion completion = execute(stmt.body);
+            if (completion != Completion.NORMAL) return completion;
+            counter += stmt.step;
+            current.values[slot] = counter;
+            if (jit != null && running != null) jit.backEdge(running);
+        }
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.then);
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        define(stmt.global, stmt.boxed, stmt.slot, null);
+        LoxFunction function = new LoxFunction(stmt, capture(stmt), false);
+        initialize(stmt.global, stmt.boxed, stmt.slot, function);
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitIfStmt(Stmt.If stmt) {
+        if (evaluateCondition(stmt.condition)) {
+            return execute(stmt.then);
         } else if (stmt.otherwise != null) {
-            execute(stmt.otherwise);
+            return execute(stmt.otherwise);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null) {
             value = evaluate(stmt.value);
         }
-        throw new ReturnSignal(value);
+        returned = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitReturnBinaryStmt(Stmt.ReturnBinary stmt) {
+        Expr.Binary value = stmt.value;
+        returned = value.op.execute(value, operand(value.left), operand(value.right));
+        return Completion.RETURN;
+    }
+
+    private Object operand(Expr expr) {
+        if (expr instanceof Expr.Literal) return ((Expr.Literal) expr).value;
+        Expr.Variable variable = (Expr.Variable) expr;
+        return lookupVariable(variable.name, variable.access, variable.slot, variable.boxed);
+    }
+
+    @Override
+    public Completion visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
-        current.define(stmt.name.lexeme, value);
-        return null;
+        define(stmt.global, stmt.boxed, stmt.slot, value);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        while (evaluateCondition(stmt.condition)) {
+            Completion completion = execute(stmt.body);
+            if (completion != Completion.NORMAL) return completion;
+            if (jit != null && running != null) jit.backEdge(running);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
+        assign(expr, value);
+        return value;
+    }
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            current.assignAt(distance, expr.name, value);
-        } else {
-            globals.assign(expr.name, value);
+    private void assign(Expr.Assign expr, Object value) {
+        switch (expr.access) {
+            case LOCAL:
+                if (expr.boxed) {
+                    ((Cell) current.values[expr.slot]).value = value;
+                } else {
+                    current.values[expr.slot] = value;
+                }
+                break;
+            case UPVALUE:
+                ((Cell) current.upvalues[expr.slot]).value = value;
+                break;
+            default:
+                globals.assign(expr.slot, expr.name, value);
+                break;
         }
-
-        return value;
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
-
-        switch (expr.operator.type) {
-            case EQ_EQ:
-                return isEqual(left, right);
-            case NOT_EQ:
-                return !isEqual(left, right);
-            case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left < (double) right;
-            case LESS_EQ:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left <= (double) right;
-            case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left > (double) right;
-            case GREATER_EQ:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left >= (double) right;
-            case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left + (double) right;
-                }
-                if (left instanceof String && right instanceof String) {
-                    return (String) left + (String) right;
-                }
-                throw new RuntimeError(expr.operator,
-                        "Operands must be two numbers or two strings.");
-            case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left - (double) right;
-            case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left * (double) right;
-            case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left / (double) right;
+        BinaryOp op = expr.op;
+        if (op instanceof BinaryOp.Arithmetic) {
+            try {
+                return evaluateArithmetic(expr, (BinaryOp.Arithmetic) op);
+            } catch (NotANumber miss) {
+                return miss.value;
+            }
+        }
+        if (op instanceof BinaryOp.Comparison) {
+            return compareNumbers(expr, (BinaryOp.Comparison) op);
         }
 
-        throw new RuntimeError(expr.operator, "Unhandled binary expression.");
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
+        return expr.op.execute(expr, left, right);
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        return finishCall(expr, evaluate(expr.callee));
+    }
 
+    private Object finishCall(Expr.Call expr, Object callee) {
         List<Object> arguments = new ArrayList<>();
         for (Expr argument : expr.arguments) {
             arguments.add(evaluate(argument));
         }
 
+        LoxCallable function = checkCallable(callee, expr.paren, arguments);
+        if (expr.tail && function instanceof LoxFunction) {
+            return ((LoxFunction) function).tailCall(arguments, current);
+        }
+        try {
+            return function.call(this, arguments);
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
+    }
+
+    private LoxCallable checkCallable(Object callee, Token paren, List<Object> arguments) {
         if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+            throw new RuntimeError(paren, "Can only call functions and classes.");
         }
 
         LoxCallable function = (LoxCallable) callee;
         if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected "
+            throw new RuntimeError(paren, "Expected "
                     + function.arity() + " arguments but got "
                     + arguments.size() + ".");
         }
+        return function;
+    }
 
-        return function.call(this, arguments);
+    @Override
+    public Object visitCompareConstantExpr(Expr.CompareConstant expr) {
+        return compareConstant(expr);
+    }
+
+    // Compares numbers directly once the comparison has learned that it
+    // compares numbers, and runs its operation otherwise.
+    private boolean compareConstant(Expr.CompareConstant expr) {
+        Expr.Variable variable = expr.variable;
+        Object value = lookupVariable(variable.name, variable.access, variable.slot, variable.boxed);
+        BinaryOp op = expr.comparison.op;
+        if (value instanceof Double && op instanceof BinaryOp.Comparison) {
+            return ((BinaryOp.Comparison) op).apply((double) value, expr.constant);
+        }
+        return (Boolean) op.execute(expr.comparison, value, expr.constant);
+    }
+
+    @Override
+    public Object visitFieldUpdateExpr(Expr.FieldUpdate expr) {
+        Object object = evaluate(expr.set.object);
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(expr.set.name, "Only instances have fields.");
+        }
+
+        LoxInstance instance = (LoxInstance) object;
+        Expr.Binary operation = expr.operation;
+        Object left = expr.get.cache.get(instance);
+        Object value = operation.op.execute(operation, left, evaluate(operation.right));
+        expr.set.cache.set(instance, value);
+        return value;
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            return expr.cache.get((LoxInstance) object);
         }
         throw new RuntimeError(expr.name, "Only instances have properties.");
     }
@@ -243,6 +500,86 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
         return evaluate(expr.expression);
     }
 
+    @Override
+    public Object visitInvokeExpr(Expr.Invoke expr) {
+        Object object = evaluate(expr.object);
+        return finishInvoke(expr, object, findMethod(expr, object));
+    }
+
+    private Object findMethod(Expr.Invoke expr, Object object) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(expr.name, "Only instances have properties.");
+        }
+        return expr.cache.getForCall((LoxInstance) object);
+    }
+
+    private Object finishInvoke(Expr.Invoke expr, Object object, Object callee) {
+        List<Object> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            arguments.add(evaluate(argument));
+        }
+
+        LoxCallable function = checkCallable(callee, expr.paren, arguments);
+        try {
+            if (function instanceof LoxFunction) {
+                LoxFunction method = (LoxFunction) function;
+                boolean unbound = method.isUnbound();
+                if (expr.tail) {
+                    return unbound ? method.tailInvoke(object, arguments, current)
+                                   : method.tailCall(arguments, current);
+                }
+                if (unbound) return method.invoke(this, object, arguments);
+            }
+            return function.call(this, arguments);
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
+    }
+
+    @Override
+    public Object visitIncrementExpr(Expr.Increment expr) {
+        Expr.Assign assign = expr.assign;
+        Expr.Binary operation = (Expr.Binary) assign.value;
+        Object value = lookupVariable(assign.name, assign.access, assign.slot, assign.boxed);
+
+        // Like comparisons, the operation learns its operand types first.
+        Object result;
+        if (value instanceof Double && operation.op instanceof BinaryOp.Arithmetic) {
+            result = (double) value + expr.amount;
+        } else {
+            result = operation.op.execute(operation, value, ((Expr.Literal) operation.right).value);
+        }
+        assign(assign, result);
+        return result;
+    }
+
+    // Runs the inlined body with the arguments in the caller's slots, or
+    // makes the call if the callee is not the function that was inlined.
+    @Override
+    public Object visitInlineExpr(Expr.Inline expr) {
+        int slot = expr.slot;
+        List<Expr> arguments;
+        if (expr.call instanceof Expr.Invoke) {
+            Expr.Invoke invoke = (Expr.Invoke) expr.call;
+            Object object = evaluate(invoke.object);
+            Object callee = findMethod(invoke, object);
+            if (!LoxFunction.runs(callee, expr.function)) return finishInvoke(invoke, object, callee);
+            current.values[slot++] = object;
+            arguments = invoke.arguments;
+        } else {
+            Expr.Call call = (Expr.Call) expr.call;
+            Object callee = evaluate(call.callee);
+            if (!LoxFunction.runs(callee, expr.function)) return finishCall(call, callee);
+            arguments = call.arguments;
+        }
+
+        for (Expr argument : arguments) {
+            current.values[slot++] = evaluate(argument);
+        }
+        Object value = evaluate(expr.body);
+        return expr.returns ? value : null;
+    }
+
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
         return expr.value;
@@ -269,29 +606,50 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance) object).set(expr.name, value);
+        expr.cache.set((LoxInstance) object, value);
 
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-
-        LoxClass superclass = (LoxClass) current.fetchAt(distance, "super");
-        LoxInstance object = (LoxInstance) current.fetchAt(distance - 1, "this");
-        LoxFunction method = superclass.findMethod(expr.method.lexeme);
+        LoxClass superclass = (LoxClass) lookupVariable(expr.keyword, expr.access, expr.slot, false);
+        LoxInstance object = (LoxInstance) lookupVariable(expr.keyword, expr.thisAccess, expr.thisSlot, false);
+        LoxFunction method = superclass.findMethod(expr.method.lexeme());
 
         if (method == null) {
-            throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
+            throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme() + "'.");
         }
 
         return method.bind(object);
     }
 
+    @Override
+    public Object visitSuperInvokeExpr(Expr.SuperInvoke expr) {
+        LoxClass superclass = (LoxClass) lookupVariable(expr.keyword, expr.access, expr.slot, false);
+        Object object = lookupVariable(expr.keyword, expr.thisAccess, expr.thisSlot, false);
+        LoxFunction method = superclass.findMethod(expr.method.lexeme());
+
+        if (method == null) {
+            throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme() + "'.");
+        }
+
+        List<Object> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            arguments.add(evaluate(argument));
+        }
+
+        checkCallable(method, expr.paren, arguments);
+        try {
+            return method.invoke(this, object, arguments);
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
+    }
+
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookupVariable(expr.keyword, expr);
+        return lookupVariable(expr.keyword, expr.access, expr.slot, false);
     }
 
     @Override
@@ -309,55 +667,25 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookupVariable(expr.name, expr);
+        return lookupVariable(expr.name, expr.access, expr.slot, expr.boxed);
     }
 
-    private Object lookupVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return current.fetchAt(distance, name.lexeme);
-        } else {
-            return globals.fetch(name);
+    private Object lookupVariable(Token name, Access access, int slot, boolean boxed) {
+        Object value;
+        switch (access) {
+            case LOCAL:   value = current.values[slot]; break;
+            case UPVALUE: value = current.upvalues[slot]; break;
+            default:      return globals.fetch(slot, name);
         }
+        return boxed ? ((Cell) value).value : value;
     }
 
-    private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null) return true;
-        if (a == null)              return false;
-        return a.equals(b);
-    }
-
-    private boolean isTruthy(Object value) {
-        if (value == null)              return false;
-        if (value instanceof Boolean)   return (boolean) value;
-        return true;
+    private Object[] capture(Stmt.Function function) {
+        return Environment.capture(current, function.captures);
     }
 
     private void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
-
-    private void checkNumberOperands(Token operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) return;
-        throw new RuntimeError(operator, "Operands must be numbers.");
-    }
-
-    private String stringify(Object value) {
-        if (value == null) return "nil";
-
-        if (value instanceof Double) {
-            return prettifyNumber((Double) value);
-        }
-
-        return value.toString();
-    }
-
-    private String prettifyNumber(Double value) {
-        String text = value.toString();
-        if (text.endsWith(".0")) {
-            text = text.substring(0, text.length() - 2);
-        }
-        return text;
-    }
 }
@@ -0,0 +1,269 @@
+package org.yufengwng.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.List;
+
+// Second tier for the tree-walking interpreter. Functions count their calls
+// and loop back-edges, and once one gets hot its body is compiled to a JVM
+// method in a hidden class so the JVM can optimize it like Java code. The
+// compiled code speculates on the operand types the interpreter has seen so
+// far and goes back to interpreting the function when that stops holding.
+class Jit {
+    static final int DEFAULT_THRESHOLD = 1000;
+
+    // Give up on a function that keeps invalidating its compiled code.
+    private static final int MAX_DEOPTS = 3;
+
+    private static final MethodType ENTRY_TYPE = MethodType.methodType(
+            Object.class, JitCode.class, Object[].class, Object.class, List.class);
+
+    // Hotness and compiled code of a function declaration.
+    static class Profile {
+        int hotness = 0;
+        int deopts = 0;
+        boolean failed = false;
+        JitCode code = null;
+    }
+
+    final Interpreter interpreter;
+    private final int threshold;
+
+    Jit(Interpreter interpreter, int threshold) {
+        this.interpreter = interpreter;
+        this.threshold = threshold;
+    }
+
+    // Counts a call and returns the compiled code to run, if there is any.
+    JitCode enter(Stmt.Function declaration) {
+        Profile profile = declaration.profile;
+        if (profile.code != null) return profile.code;
+        if (profile.failed) return null;
+
+        profile.hotness += 1;
+        if (profile.hotness < threshold) return null;
+
+        profile.code = compile(declaration);
+        if (profile.code == null) profile.failed = true;
+        return profile.code;
+    }
+
+    void backEdge(Stmt.Function declaration) {
+        declaration.profile.hotness += 1;
+    }
+
+    void deoptimize(Stmt.Function declaration) {
+        Profile profile = declaration.profile;
+        profile.code = null;
+        profile.hotness = 0;
+        profile.deopts += 1;
+        if (profile.deopts >= MAX_DEOPTS) profile.failed = true;
+    }
+
+    private JitCode compile(Stmt.Function declaration) {
+        JitCompiler compiler = new JitCompiler(declaration);
+        byte[] bytes = compiler.compile();
+        if (bytes == null) return null;
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            MethodHandle entry = lookup.findStatic(lookup.lookupClass(), JitCompiler.METHOD_NAME, ENTRY_TYPE);
+            return new JitCode(this, declaration, compiler.constants(), entry);
+        } catch (ReflectiveOperationException e) {
+            // A class that fails to verify is a bug in the compiler, so
+            // that LinkageError is left to surface.
+            return null;
+        }
+    }
+
+    // Runtime support called from compiled code. These mirror what the
+    // interpreter does for the same nodes, errors included.
+
+    static Object binary(Object left, Object right, Expr.Binary node) {
+        return node.op.execute(node, left, right);
+    }
+
+    private static Object miss(Object left, Object right, Expr.Binary node, JitCode code) {
+        code.deoptimize();
+        return node.op.execute(node, left, right);
+    }
+
+    static Object addNumbers(Object left, Object right, Expr.Binary node, JitCode code) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        return miss(left, right, node, code);
+    }
+
+    static Object addStrings(Object left, Object right, Expr.Binary node, JitCode code) {
+        if (Values.isString(left) && Values.isString(right)) {
+            return Rope.concat(left, right);
+        }
+        return miss(left, right, node, code);
+    }
+
+    static Object subtractNumbers(Object left, Object right, Expr.Binary node, JitCode code) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left - (double) right;
+        }
+        return miss(left, right, node, code);
+    }
+
+    static Object multiplyNumbers(Object left, Object right, Expr.Binary node, JitCode code) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left * (double) right;
+        }
+        return miss(left, right, node, code);
+    }
+
+    static Object divideNumbers(Object left, Object right, Expr.Binary node, JitCode code) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left / (double) right;
+        }
+        return miss(left, right, node, code);
+    }
+
+    static Object lessNumbers(Object left, Object right, Expr.Binary node, JitCode code) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left < (double) right;
+        }
+        return miss(left, right, node, code);
+    }
+
+    static Object lessEqualNumbers(Object left, Object right, Expr.Binary node, JitCode code) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left <= (double) right;
+        }
+        return miss(left, right, node, code);
+    }
+
+    static Object greaterNumbers(Object left, Object right, Expr.Binary node, JitCode code) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left > (double) right;
+        }
+        return miss(left, right, node, code);
+    }
+
+    static Object greaterEqualNumbers(Object left, Object right, Expr.Binary node, JitCode code) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left >= (double) right;
+        }
+        return miss(left, right, node, code);
+    }
+
+    static Object equalNumbers(Object left, Object right, Expr.Binary node, JitCode code) {
+        if (left instanceof Double && right instanceof Double) {
+            return ((Double) left).equals(right);
+        }
+        return miss(left, right, node, code);
+    }
+
+    static Object notEqualNumbers(Object left, Object right, Expr.Binary node, JitCode code) {
+        if (left instanceof Double && right instanceof Double) {
+            return !((Double) left).equals(right);
+        }
+        return miss(left, right, node, code);
+    }
+
+    static Object negate(Object value, Token operator) {
+        if (value instanceof Double) return - (double) value;
+        throw new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    static Object not(Object value) {
+        return !Values.isTruthy(value);
+    }
+
+    static Object call(Object callee, Object[] args, Token paren, JitCode code) {
+        LoxCallable function = checkCallable(callee, args, paren);
+        try {
+            return function.call(code.interpreter, Arrays.asList(args));
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(paren, "Stack overflow.");
+        }
+    }
+
+    // For a call in tail position. Compiled code has no frame to hand over.
+    static Object tailCall(Object callee, Object[] args, Token paren, JitCode code) {
+        LoxCallable function = checkCallable(callee, args, paren);
+        if (function instanceof LoxFunction) {
+            return ((LoxFunction) function).tailCall(Arrays.asList(args), null);
+        }
+        try {
+            return function.call(code.interpreter, Arrays.asList(args));
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(paren, "Stack overflow.");
+        }
+    }
+
+    private static LoxCallable checkCallable(Object callee, Object[] args, Token paren) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable) callee;
+        if (args.length != function.arity()) {
+            throw new RuntimeError(paren, "Expected "
+                    + function.arity() + " arguments but got "
+                    + args.length + ".");
+        }
+        return function;
+    }
+
+    static Object getForCall(Object object, Expr.Invoke node) {
+        if (object instanceof LoxInstance) {
+            return node.cache.getForCall((LoxInstance) object);
+        }
+        throw new RuntimeError(node.name, "Only instances have properties.");
+    }
+
+    static Object invoke(Object receiver, Object callee, Object[] args, Expr.Invoke node, JitCode code) {
+        LoxCallable function = checkCallable(callee, args, node.paren);
+        try {
+            if (function instanceof LoxFunction && ((LoxFunction) function).isUnbound()) {
+                return ((LoxFunction) function).invoke(code.interpreter, receiver, Arrays.asList(args));
+            }
+            return function.call(code.interpreter, Arrays.asList(args));
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(node.paren, "Stack overflow.");
+        }
+    }
+
+    static Object tailInvoke(Object receiver, Object callee, Object[] args, Expr.Invoke node, JitCode code) {
+        LoxCallable function = checkCallable(callee, args, node.paren);
+        if (function instanceof LoxFunction) {
+            LoxFunction method = (LoxFunction) function;
+            if (method.isUnbound()) return method.tailInvoke(receiver, Arrays.asList(args), null);
+            return method.tailCall(Arrays.asList(args), null);
+        }
+        try {
+            return function.call(code.interpreter, Arrays.asList(args));
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(node.paren, "Stack overflow.");
+        }
+    }
+
+    static Object get(Object object, Expr.Get node) {
+        if (object instanceof LoxInstance) {
+            return node.cache.get((LoxInstance) object);
+        }
+        throw new RuntimeError(node.name, "Only instances have properties.");
+    }
+
+    static Object checkFields(Object object, Token name) {
+        if (object instanceof LoxInstance) return object;
+        throw new RuntimeError(name, "Only instances have fields.");
+    }
+
+    static Object set(Object object, Object value, Expr.Set node) {
+        node.cache.set((LoxInstance) object, value);
+        return value;
+    }
+
+    static Object assignGlobal(Object value, JitCode code, int slot, Token name) {
+        code.globals.assign(slot, name, value);
+        return value;
+    }
+}
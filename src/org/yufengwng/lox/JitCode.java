@@ -0,0 +1,44 @@
+package org.yufengwng.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+
+// A function body compiled to JVM bytecode. The generated method reads
+// the constants, globals and interpreter it needs from here.
+class JitCode {
+    final Jit jit;
+    final Stmt.Function declaration;
+    final Object[] constants;
+    final Globals globals;
+    final Interpreter interpreter;
+
+    private final MethodHandle entry;
+    private boolean valid = true;
+
+    JitCode(Jit jit, Stmt.Function declaration, Object[] constants, MethodHandle entry) {
+        this.jit = jit;
+        this.declaration = declaration;
+        this.constants = constants;
+        this.globals = jit.interpreter.globals;
+        this.interpreter = jit.interpreter;
+        this.entry = entry;
+    }
+
+    Object invoke(Object[] upvalues, Object receiver, List<Object> arguments) {
+        try {
+            return (Object) entry.invokeExact(this, upvalues, receiver, arguments);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    // Called when a speculated operand type turned out wrong. The running
+    // call finishes on the generic path, later calls go back to the tree.
+    void deoptimize() {
+        if (!valid) return;
+        valid = false;
+        jit.deoptimize(declaration);
+    }
+}
@@ -0,0 +1,705 @@
+package org.yufengwng.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Translates one function body into the bytecode of a static JVM method:
+//
+//     static Object run(JitCode code, Object[] upvalues, Object receiver, List args)
+//
+// The function's own locals live in JVM locals, which is only safe because
+// bodies that declare functions or classes (the only things that capture
+// locals) are never compiled. Variables of enclosing functions are read
+// from the closure's upvalues. Anything else the compiler does not handle
+// makes it give up, leaving the function to the interpreter.
+class JitCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    static final String METHOD_NAME = "run";
+
+    private static final String CLASS_NAME = "org/yufengwng/lox/JitFunction";
+    private static final String DESCRIPTOR =
+            "(Lorg/yufengwng/lox/JitCode;[Ljava/lang/Object;Ljava/lang/Object;Ljava/util/List;)Ljava/lang/Object;";
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String JIT = "org/yufengwng/lox/Jit";
+    private static final String JIT_CODE = "org/yufengwng/lox/JitCode";
+    private static final String CELL = "org/yufengwng/lox/Cell";
+    private static final String GLOBALS = "org/yufengwng/lox/Globals";
+    private static final String TOKEN = "org/yufengwng/lox/Token";
+    private static final String BINARY = "org/yufengwng/lox/Expr$Binary";
+    private static final String GET = "org/yufengwng/lox/Expr$Get";
+    private static final String SET = "org/yufengwng/lox/Expr$Set";
+    private static final String INVOKE = "org/yufengwng/lox/Expr$Invoke";
+    private static final String FUNCTION = "org/yufengwng/lox/Stmt$Function";
+
+    private static final String BINARY_HELPER =
+            "(Ljava/lang/Object;Ljava/lang/Object;Lorg/yufengwng/lox/Expr$Binary;Lorg/yufengwng/lox/JitCode;)Ljava/lang/Object;";
+
+    // JVM local slots of the method parameters and the constants array.
+    private static final int CODE = 0;
+    private static final int UPVALUES = 1;
+    private static final int RECEIVER = 2;
+    private static final int ARGS = 3;
+    private static final int CONSTANTS = 4;
+    private static final int FIRST_LOCAL = 5;
+
+    private static final int ACONST_NULL = 0x01;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ALOAD = 0x19;
+    private static final int AALOAD = 0x32;
+    private static final int ASTORE = 0x3a;
+    private static final int AASTORE = 0x53;
+    private static final int POP = 0x57;
+    private static final int DUP_X1 = 0x5a;
+    private static final int DUP = 0x59;
+    private static final int SWAP = 0x5f;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int GOTO = 0xa7;
+    private static final int ARETURN = 0xb0;
+    private static final int GETSTATIC = 0xb2;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int INVOKEINTERFACE = 0xb9;
+    private static final int ANEWARRAY = 0xbd;
+    private static final int CHECKCAST = 0xc0;
+    private static final int WIDE = 0xc4;
+
+    // Thrown to abandon compiling a function the JIT does not handle.
+    @SuppressWarnings("serial")
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final Stmt.Function function;
+    private final ClassFileWriter classFile = new ClassFileWriter();
+    private final List<Object> constants = new ArrayList<>();
+
+    private final int maxLocals;
+
+    private byte[] code = new byte[256];
+    private int count = 0;
+    private int stack = 0;
+    private int maxStack = 0;
+
+    JitCompiler(Stmt.Function function) {
+        this.function = function;
+        this.maxLocals = FIRST_LOCAL + function.locals;
+    }
+
+    // Returns the class file, or null if the function cannot be compiled.
+    byte[] compile() {
+        if (maxLocals > 0xffff) return null;
+        try {
+            emitLoad(CODE);
+            emitField(GETFIELD, JIT_CODE, "constants", "[Ljava/lang/Object;", 0);
+            emitStore(CONSTANTS);
+
+            int first = FIRST_LOCAL;
+            if (function.method) {
+                emitLoad(RECEIVER);
+                emitStore(first++);
+            }
+            for (int i = 0; i < function.params.size(); i++) {
+                emitLoad(ARGS);
+                emitInt(i);
+                emitInvoke(INVOKEINTERFACE, "java/util/List", "get", "(I)Ljava/lang/Object;", -1);
+                emitStore(first + i);
+            }
+            for (int i = first - FIRST_LOCAL + function.params.size(); i < function.locals; i++) {
+                emitOp(ACONST_NULL, 1);
+                emitStore(FIRST_LOCAL + i);
+            }
+
+            compile(function.body);
+            emitOp(ACONST_NULL, 1);
+            emitOp(ARETURN, -1);
+        } catch (Unsupported e) {
+            return null;
+        }
+
+        if (count > 0xffff) return null;
+        return classFile.toByteArray(CLASS_NAME, METHOD_NAME, DESCRIPTOR, code, count, maxStack, maxLocals);
+    }
+
+    Object[] constants() {
+        return constants.toArray();
+    }
+
+    private void compile(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement == null) throw new Unsupported();
+            compile(statement);
+        }
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void getVariable(Token name, Access access, int slot, boolean boxed) {
+        switch (access) {
+            case LOCAL:
+                // Locals of compiled bodies are never captured.
+                if (boxed) throw new Unsupported();
+                emitLoad(FIRST_LOCAL + slot);
+                break;
+            case UPVALUE:
+                emitLoad(UPVALUES);
+                emitInt(slot);
+                emitOp(AALOAD, -1);
+                if (boxed) {
+                    emitCast(CELL);
+                    emitField(GETFIELD, CELL, "value", "L" + OBJECT + ";", 0);
+                }
+                break;
+            default:
+                emitLoad(CODE);
+                emitField(GETFIELD, JIT_CODE, "globals", "L" + GLOBALS + ";", 0);
+                emitInt(slot);
+                emitConstant(name, TOKEN);
+                emitInvoke(INVOKEVIRTUAL, GLOBALS, "fetch", "(IL" + TOKEN + ";)Ljava/lang/Object;", -2);
+                break;
+        }
+    }
+
+    // Stores the value on top of the stack, leaving it there.
+    private void setVariable(Token name, Access access, int slot, boolean boxed) {
+        switch (access) {
+            case LOCAL:
+                if (boxed) throw new Unsupported();
+                emitOp(DUP, 1);
+                emitStore(FIRST_LOCAL + slot);
+                break;
+            case UPVALUE:
+                // An upvalue that is assigned always lives in a cell.
+                emitLoad(UPVALUES);
+                emitInt(slot);
+                emitOp(AALOAD, -1);
+                emitCast(CELL);
+                emitOp(SWAP, 0);
+                emitOp(DUP_X1, 1);
+                emitField(PUTFIELD, CELL, "value", "L" + OBJECT + ";", -2);
+                break;
+            default:
+                emitLoad(CODE);
+                emitInt(slot);
+                emitConstant(name, TOKEN);
+                emitInvoke(INVOKESTATIC, JIT, "assignGlobal",
+                        "(Ljava/lang/Object;L" + JIT_CODE + ";IL" + TOKEN + ";)Ljava/lang/Object;", -3);
+                break;
+        }
+    }
+
+    private void emitByte(int value) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+        }
+        code[count++] = (byte) value;
+    }
+
+    private void emitShort(int value) {
+        emitByte(value >> 8);
+        emitByte(value);
+    }
+
+    private void emitOp(int op, int stackEffect) {
+        emitByte(op);
+        adjustStack(stackEffect);
+    }
+
+    private void adjustStack(int effect) {
+        stack += effect;
+        if (stack > maxStack) maxStack = stack;
+    }
+
+    private void emitInt(int value) {
+        if (value >= -1 && value <= 5) {
+            emitOp(ICONST_0 + value, 1);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            emitOp(BIPUSH, 1);
+            emitByte(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            emitOp(SIPUSH, 1);
+            emitShort(value);
+        } else {
+            emitOp(LDC_W, 1);
+            emitShort(classFile.integer(value));
+        }
+    }
+
+    private void emitLoad(int local) {
+        emitLocal(ALOAD, local);
+        adjustStack(1);
+    }
+
+    private void emitStore(int local) {
+        emitLocal(ASTORE, local);
+        adjustStack(-1);
+    }
+
+    private void emitLocal(int op, int local) {
+        if (local <= 0xff) {
+            emitByte(op);
+            emitByte(local);
+        } else {
+            emitByte(WIDE);
+            emitByte(op);
+            emitShort(local);
+        }
+    }
+
+    // Pushes a value from the constants array, cast to the given class.
+    private void emitConstant(Object value, String type) {
+        int index = constants.size();
+        constants.add(value);
+        emitLoad(CONSTANTS);
+        emitInt(index);
+        emitOp(AALOAD, -1);
+        if (!type.equals(OBJECT)) emitCast(type);
+    }
+
+    private void emitCast(String type) {
+        emitByte(CHECKCAST);
+        emitShort(classFile.classRef(type));
+    }
+
+    private void emitField(int op, String owner, String name, String descriptor, int stackEffect) {
+        emitOp(op, stackEffect);
+        emitShort(classFile.fieldRef(owner, name, descriptor));
+    }
+
+    private void emitInvoke(int op, String owner, String name, String descriptor, int stackEffect) {
+        if (op == INVOKEINTERFACE) {
+            emitOp(op, stackEffect);
+            emitShort(classFile.interfaceMethodRef(owner, name, descriptor));
+            emitByte(argumentSlots(descriptor) + 1);
+            emitByte(0);
+        } else {
+            emitOp(op, stackEffect);
+            emitShort(classFile.methodRef(owner, name, descriptor));
+        }
+    }
+
+    // Counts the argument words of a descriptor that only uses int and
+    // reference types.
+    private static int argumentSlots(String descriptor) {
+        int slots = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            while (c == '[') c = descriptor.charAt(++i);
+            if (c == 'L') i = descriptor.indexOf(';', i);
+            slots += 1;
+            i += 1;
+        }
+        return slots;
+    }
+
+    private int emitJump(int op) {
+        int at = count;
+        emitOp(op, op == GOTO ? 0 : -1);
+        emitShort(0);
+        return at;
+    }
+
+    private void patchJump(int at) {
+        patchJump(at, count);
+    }
+
+    private void patchJump(int at, int target) {
+        int offset = target - at;
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) throw new Unsupported();
+        code[at + 1] = (byte) (offset >> 8);
+        code[at + 2] = (byte) offset;
+    }
+
+    private void emitTruthy() {
+        emitInvoke(INVOKESTATIC, "org/yufengwng/lox/Values", "isTruthy", "(Ljava/lang/Object;)Z", 0);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        // Blocks in a function always share its frame.
+        if (!stmt.inline) throw new Unsupported();
+        compile(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitOp(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if (!stmt.inline) throw new Unsupported();
+        if (stmt.initializer != null) compile(stmt.initializer);
+
+        // Counted loops run like the rest, the counter boxed in its slot.
+        int loopStart = count;
+        int exitJump = -1;
+        if (stmt.condition != null) {
+            compile(stmt.condition);
+            emitTruthy();
+            exitJump = emitJump(IFEQ);
+        }
+        compile(stmt.body);
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emitOp(POP, -1);
+        }
+        int loop = emitJump(GOTO);
+        patchJump(loop, loopStart);
+        if (exitJump >= 0) patchJump(exitJump);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        emitTruthy();
+        int elseJump = emitJump(IFEQ);
+        compile(stmt.then);
+        if (stmt.otherwise == null) {
+            patchJump(elseJump);
+            return null;
+        }
+
+        int endJump = emitJump(GOTO);
+        patchJump(elseJump);
+        compile(stmt.otherwise);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        emitField(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;", 1);
+        compile(stmt.expression);
+        emitInvoke(INVOKESTATIC, "org/yufengwng/lox/Values", "stringify",
+                "(Ljava/lang/Object;)Ljava/lang/String;", 0);
+        emitInvoke(INVOKEVIRTUAL, "java/io/PrintStream", "println", "(Ljava/lang/String;)V", -2);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            emitOp(ACONST_NULL, 1);
+        } else {
+            compile(stmt.value);
+        }
+        emitOp(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnBinaryStmt(Stmt.ReturnBinary stmt) {
+        compile(stmt.original);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.global) throw new Unsupported();
+        if (stmt.initializer == null) {
+            emitOp(ACONST_NULL, 1);
+        } else {
+            compile(stmt.initializer);
+        }
+        emitStore(FIRST_LOCAL + stmt.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = count;
+        compile(stmt.condition);
+        emitTruthy();
+        int exitJump = emitJump(IFEQ);
+        compile(stmt.body);
+        int loop = emitJump(GOTO);
+        patchJump(loop, loopStart);
+        patchJump(exitJump);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        setVariable(expr.name, expr.access, expr.slot, expr.boxed);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        emitConstant(expr, BINARY);
+
+        String helper = null;
+        switch (expr.op.feedback()) {
+            case NUMBERS:
+                switch (expr.operator.type) {
+                    case PLUS:       helper = "addNumbers"; break;
+                    case MINUS:      helper = "subtractNumbers"; break;
+                    case STAR:       helper = "multiplyNumbers"; break;
+                    case SLASH:      helper = "divideNumbers"; break;
+                    case LESS:       helper = "lessNumbers"; break;
+                    case LESS_EQ:    helper = "lessEqualNumbers"; break;
+                    case GREATER:    helper = "greaterNumbers"; break;
+                    case GREATER_EQ: helper = "greaterEqualNumbers"; break;
+                    case EQ_EQ:      helper = "equalNumbers"; break;
+                    case NOT_EQ:     helper = "notEqualNumbers"; break;
+                    default:         break;
+                }
+                break;
+            case STRINGS:
+                helper = "addStrings";
+                break;
+            default:
+                break;
+        }
+
+        if (helper == null) {
+            emitInvoke(INVOKESTATIC, JIT, "binary",
+                    "(Ljava/lang/Object;Ljava/lang/Object;L" + BINARY + ";)Ljava/lang/Object;", -2);
+        } else {
+            emitLoad(CODE);
+            emitInvoke(INVOKESTATIC, JIT, helper, BINARY_HELPER, -3);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+        emitCall(expr);
+        return null;
+    }
+
+    // Calls the callee on top of the stack.
+    private void emitCall(Expr.Call expr) {
+        emitArguments(expr.arguments);
+        emitConstant(expr.paren, TOKEN);
+        emitLoad(CODE);
+        emitInvoke(INVOKESTATIC, JIT, expr.tail ? "tailCall" : "call",
+                "(Ljava/lang/Object;[Ljava/lang/Object;L" + TOKEN + ";L" + JIT_CODE + ";)Ljava/lang/Object;", -3);
+    }
+
+    // Pushes the evaluated arguments as an Object[].
+    private void emitArguments(List<Expr> arguments) {
+        emitInt(arguments.size());
+        emitByte(ANEWARRAY);
+        emitShort(classFile.classRef(OBJECT));
+        for (int i = 0; i < arguments.size(); i++) {
+            emitOp(DUP, 1);
+            emitInt(i);
+            compile(arguments.get(i));
+            emitOp(AASTORE, -3);
+        }
+    }
+
+    // Fused nodes save dispatch in the tree engine only; compile what
+    // they stand for.
+    @Override
+    public Void visitCompareConstantExpr(Expr.CompareConstant expr) {
+        compile(expr.comparison);
+        return null;
+    }
+
+    @Override
+    public Void visitFieldUpdateExpr(Expr.FieldUpdate expr) {
+        compile(expr.set);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        emitConstant(expr, GET);
+        emitInvoke(INVOKESTATIC, JIT, "get", "(Ljava/lang/Object;L" + GET + ";)Ljava/lang/Object;", -1);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitInvokeExpr(Expr.Invoke expr) {
+        compile(expr.object);
+        emitOp(DUP, 1);
+        emitConstant(expr, INVOKE);
+        emitInvoke(INVOKESTATIC, JIT, "getForCall", "(Ljava/lang/Object;L" + INVOKE + ";)Ljava/lang/Object;", -1);
+        emitInvoke(expr);
+        return null;
+    }
+
+    // Calls the method on top of the stack, with the receiver under it.
+    private void emitInvoke(Expr.Invoke expr) {
+        emitArguments(expr.arguments);
+        emitConstant(expr, INVOKE);
+        emitLoad(CODE);
+        emitInvoke(INVOKESTATIC, JIT, expr.tail ? "tailInvoke" : "invoke",
+                "(Ljava/lang/Object;Ljava/lang/Object;[Ljava/lang/Object;L" + INVOKE + ";L" + JIT_CODE + ";)Ljava/lang/Object;", -4);
+    }
+
+    @Override
+    public Void visitIncrementExpr(Expr.Increment expr) {
+        compile(expr.assign);
+        return null;
+    }
+
+    // Runs the inlined body with the arguments in the caller's locals, or
+    // makes the call if the callee is not the function that was inlined.
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        int slot = FIRST_LOCAL + expr.slot;
+        List<Expr> arguments;
+        Expr.Invoke invoke = null;
+        if (expr.call instanceof Expr.Invoke) {
+            invoke = (Expr.Invoke) expr.call;
+            compile(invoke.object);
+            emitOp(DUP, 1);
+            emitConstant(invoke, INVOKE);
+            emitInvoke(INVOKESTATIC, JIT, "getForCall", "(Ljava/lang/Object;L" + INVOKE + ";)Ljava/lang/Object;", -1);
+            arguments = invoke.arguments;
+        } else {
+            compile(((Expr.Call) expr.call).callee);
+            arguments = ((Expr.Call) expr.call).arguments;
+        }
+
+        emitOp(DUP, 1);
+        emitConstant(expr.function, FUNCTION);
+        emitInvoke(INVOKESTATIC, "org/yufengwng/lox/LoxFunction", "runs",
+                "(Ljava/lang/Object;L" + FUNCTION + ";)Z", -1);
+        int callJump = emitJump(IFEQ);
+        emitOp(POP, -1);
+        if (invoke != null) emitStore(slot++);
+        for (Expr argument : arguments) {
+            compile(argument);
+            emitStore(slot++);
+        }
+        compile(expr.body);
+        if (!expr.returns) {
+            emitOp(POP, -1);
+            emitOp(ACONST_NULL, 1);
+        }
+        int endJump = emitJump(GOTO);
+
+        // The stack holds the callee here, and the receiver under it for
+        // an invoke, where the inlined path left just its result.
+        patchJump(callJump);
+        if (invoke != null) {
+            adjustStack(1);
+            emitInvoke(invoke);
+        } else {
+            emitCall((Expr.Call) expr.call);
+        }
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(ACONST_NULL, 1);
+        } else if (expr.value instanceof Boolean) {
+            String name = (Boolean) expr.value ? "TRUE" : "FALSE";
+            emitField(GETSTATIC, "java/lang/Boolean", name, "Ljava/lang/Boolean;", 1);
+        } else {
+            emitConstant(expr.value, OBJECT);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        emitOp(DUP, 1);
+        emitTruthy();
+        int endJump = emitJump(expr.operator.type == TokenType.OR ? IFNE : IFEQ);
+        emitOp(POP, -1);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        emitConstant(expr.name, TOKEN);
+        emitInvoke(INVOKESTATIC, JIT, "checkFields", "(Ljava/lang/Object;L" + TOKEN + ";)Ljava/lang/Object;", -1);
+        compile(expr.value);
+        emitConstant(expr, SET);
+        emitInvoke(INVOKESTATIC, JIT, "set",
+                "(Ljava/lang/Object;Ljava/lang/Object;L" + SET + ";)Ljava/lang/Object;", -2);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitSuperInvokeExpr(Expr.SuperInvoke expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        getVariable(expr.keyword, expr.access, expr.slot, false);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        switch (expr.operator.type) {
+            case BANG:
+                emitInvoke(INVOKESTATIC, JIT, "not", "(Ljava/lang/Object;)Ljava/lang/Object;", 0);
+                break;
+            case MINUS:
+                emitConstant(expr.operator, TOKEN);
+                emitInvoke(INVOKESTATIC, JIT, "negate", "(Ljava/lang/Object;L" + TOKEN + ";)Ljava/lang/Object;", -1);
+                break;
+            default:
+                throw new Unsupported();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        getVariable(expr.name, expr.access, expr.slot, expr.boxed);
+        return null;
+    }
+}
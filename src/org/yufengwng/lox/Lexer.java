@@ -2,27 +2,25 @@ package org.yufengwng.lox;
 
 import static org.yufengwng.lox.TokenType.*;
 
-import java.util.ArrayList;
-import java.util.List;
-
 class Lexer {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final CharSequence source;
+    private final TokenBuffer tokens;
 
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    Lexer(String source) {
+    Lexer(CharSequence source) {
         this.source = source;
+        this.tokens = new TokenBuffer(source);
     }
 
-    List<Token> scan() {
+    TokenBuffer scan() {
         while (!isAtEnd()) {
             start = current;
             scanToken();
         }
-        tokens.add(new Token(EOF, null, "", line));
+        tokens.add(EOF, current, current, line, "");
         return tokens;
     }
 
@@ -124,15 +122,20 @@ class Lexer {
     }
 
     private String currentLexeme() {
-        return source.substring(start, current);
+        return source.subSequence(start, current).toString();
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null, currentLexeme());
+        addToken(type, null);
+    }
+
+    private void addToken(TokenType type, Object literal) {
+        tokens.add(type, start, current, line, literal);
     }
 
-    private void addToken(TokenType type, Object literal, String lexeme) {
-        tokens.add(new Token(type, literal, lexeme, line));
+    // Keywords and names, whose lexemes are already symbols.
+    private void addSymbol(TokenType type, String lexeme) {
+        tokens.add(type, start, current, line, lexeme);
     }
 
     private void finishLineComment() {
@@ -145,9 +148,52 @@ class Lexer {
         while (isAlphaNumeric(peek())) {
             advance();
         }
-        String text = currentLexeme();
-        TokenType type = KEYWORDS.getOrDefault(text, IDENT);
-        addToken(type, null, text);
+        if (!finishKeyword()) {
+            addSymbol(IDENT, Symbols.intern(source, start, current));
+        }
+    }
+
+    // Recognizes keywords by their first letters, like a trie, instead of
+    // hashing every identifier.
+    private boolean finishKeyword() {
+        switch (source.charAt(start)) {
+            case 'a': return keyword("and", AND);
+            case 'c': return keyword("class", CLASS);
+            case 'e': return keyword("else", ELSE);
+            case 'f':
+                if (current - start < 2) return false;
+                switch (source.charAt(start + 1)) {
+                    case 'a': return keyword("false", FALSE);
+                    case 'o': return keyword("for", FOR);
+                    case 'u': return keyword("fun", FUN);
+                }
+                return false;
+            case 'i': return keyword("if", IF);
+            case 'n': return keyword("nil", NIL);
+            case 'o': return keyword("or", OR);
+            case 'p': return keyword("print", PRINT);
+            case 'r': return keyword("return", RETURN);
+            case 's': return keyword("super", SUPER);
+            case 't':
+                if (current - start < 2) return false;
+                switch (source.charAt(start + 1)) {
+                    case 'h': return keyword("this", THIS);
+                    case 'r': return keyword("true", TRUE);
+                }
+                return false;
+            case 'v': return keyword("var", VAR);
+            case 'w': return keyword("while", WHILE);
+        }
+        return false;
+    }
+
+    private boolean keyword(String text, TokenType type) {
+        if (current - start != text.length()) return false;
+        for (int i = 1; i < text.length(); i++) {
+            if (source.charAt(start + i) != text.charAt(i)) return false;
+        }
+        addSymbol(type, text);
+        return true;
     }
 
     private void finishNumber() {
@@ -155,8 +201,7 @@ class Lexer {
             advance();
         }
         tryFraction();
-        String text = currentLexeme();
-        addToken(NUM, toLoxNumber(text), text);
+        addToken(NUM, toLoxNumber());
     }
 
     private void tryFraction() {
@@ -168,8 +213,18 @@ class Lexer {
         }
     }
 
-    private Double toLoxNumber(String lexeme) {
-        return Double.parseDouble(lexeme);
+    // Whole numbers short enough to be exact are read digit by digit,
+    // others parsed from their text.
+    private Double toLoxNumber() {
+        if (current - start > 15) return Double.parseDouble(currentLexeme());
+
+        long value = 0;
+        for (int i = start; i < current; i++) {
+            char c = source.charAt(i);
+            if (c == '.') return Double.parseDouble(currentLexeme());
+            value = value * 10 + (c - '0');
+        }
+        return (double) value;
     }
 
     private void finishString() {
@@ -184,8 +239,7 @@ class Lexer {
             return;
         }
 
-        String text = currentLexeme();
-        addToken(STR, toLoxString(text), text);
+        addToken(STR, Symbols.intern(source, start + 1, current - 1));
     }
 
     private boolean closeString() {
@@ -197,8 +251,4 @@ class Lexer {
             return true;
         }
     }
-
-    private String toLoxString(String lexeme) {
-        return lexeme.substring(1, lexeme.length() - 1);
-    }
 }
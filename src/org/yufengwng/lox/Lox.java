@@ -3,9 +3,10 @@ package org.yufengwng.lox;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class Lox {
@@ -14,27 +15,125 @@ public class Lox {
     private static final int EX_DATAERR = 65;
     private static final int EX_SOFTWARE = 70;
 
-    private static final Interpreter interpreter = new Interpreter();
+    private static Engine engine;
+    private static int jitThreshold = Jit.DEFAULT_THRESHOLD;
+    private static boolean icStats = false;
+    private static boolean allocStats = false;
+    private static boolean parseStats = false;
+    private static boolean optimize = true;
+    private static boolean dumpAst = false;
+    private static int inlineSize = Optimizer.DEFAULT_INLINE_SIZE;
+    private static boolean inlineReport = false;
+    private static boolean fuse = true;
+    private static boolean fusionReport = false;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println(String.format("Usage: %s [script]", NAME));
-            System.exit(EX_USAGE);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        String engineName = "tree";
+        List<String> paths = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engineName = arg.substring("--engine=".length());
+            } else if (arg.equals("--no-jit")) {
+                jitThreshold = -1;
+            } else if (arg.startsWith("--jit-threshold=")) {
+                jitThreshold = parseCount(arg.substring("--jit-threshold=".length()));
+            } else if (arg.equals("--ic-stats")) {
+                icStats = true;
+            } else if (arg.equals("--alloc-stats")) {
+                allocStats = true;
+            } else if (arg.equals("--parse-stats")) {
+                parseStats = true;
+            } else if (arg.equals("--no-opt")) {
+                optimize = false;
+            } else if (arg.equals("--dump-ast")) {
+                dumpAst = true;
+            } else if (arg.equals("--no-inline")) {
+                inlineSize = -1;
+            } else if (arg.startsWith("--inline-size=")) {
+                inlineSize = parseCount(arg.substring("--inline-size=".length()));
+            } else if (arg.equals("--inline-report")) {
+                inlineReport = true;
+            } else if (arg.equals("--no-fuse")) {
+                fuse = false;
+            } else if (arg.equals("--fusion-report")) {
+                fusionReport = true;
+            } else if (arg.startsWith("--")) {
+                usage();
+            } else {
+                paths.add(arg);
+            }
+        }
+
+        engine = createEngine(engineName);
+        if (engine == null || paths.size() > 1) {
+            usage();
+        } else if (paths.size() == 1) {
+            runFile(paths.get(0));
         } else {
             runPrompt();
         }
     }
 
+    private static void usage() {
+        System.out.println(String.format("Usage: %s [options] [script]", NAME));
+        System.out.println("  --engine=tree|closure|vm|flat  how to run scripts (default: tree)");
+        System.out.println("  --no-jit                       never compile hot functions in the tree engine");
+        System.out.println("  --jit-threshold=N              calls and loop iterations before compiling");
+        System.out.println("  --ic-stats                     print property cache hits and misses when done");
+        System.out.println("  --alloc-stats                  print bytes allocated while running the script");
+        System.out.println("  --parse-stats                  print how long scanning and parsing took");
+        System.out.println("  --no-opt                       run the tree as parsed, without optimizing it");
+        System.out.println("  --dump-ast                     print the tree that will run before running it");
+        System.out.println("  --no-inline                    never inline calls to small functions");
+        System.out.println("  --inline-size=N                nodes a function body may have to be inlined");
+        System.out.println("  --inline-report                print the calls that were inlined");
+        System.out.println("  --no-fuse                      never fuse common patterns into single nodes");
+        System.out.println("  --fusion-report                print how often patterns were fused and occur");
+        System.exit(EX_USAGE);
+    }
+
+    private static int parseCount(String value) {
+        try {
+            int count = Integer.parseInt(value);
+            if (count >= 0) return count;
+        } catch (NumberFormatException e) {
+            // fall through to usage
+        }
+        usage();
+        return 0;
+    }
+
+    private static Engine createEngine(String name) {
+        switch (name) {
+            case "tree":    return new Interpreter(jitThreshold);
+            case "closure": return new ClosureCompiler();
+            case "vm":      return new Vm();
+            case "flat":    return new FlatInterpreter();
+            default:        return null;
+        }
+    }
+
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        CharSequence source = Source.read(Paths.get(path));
+        long allocated = allocatedBytes();
+        run(source);
+        allocated = allocatedBytes() - allocated;
+
+        if (icStats) InlineCache.dumpStats();
+        if (allocStats) System.err.println(String.format("%d bytes allocated", allocated));
 
         if (Reporter.errored())        System.exit(EX_DATAERR);
         if (Reporter.runtimeErrored()) System.exit(EX_SOFTWARE);
     }
 
+    // Bytes allocated so far by this thread, which runs the whole script.
+    private static long allocatedBytes() {
+        if (!allocStats) return 0;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getCurrentThreadAllocatedBytes();
+    }
+
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
@@ -51,18 +150,66 @@ public class Lox {
         }
     }
 
-    private static void run(String source) {
+    private static void run(CharSequence source) {
+        if (engine instanceof FlatInterpreter) {
+            FlatTree tree = flatten(source);
+            if (tree != null) ((FlatInterpreter) engine).run(tree);
+            return;
+        }
+
+        long start = System.nanoTime();
         Lexer lexer = new Lexer(source);
-        List<Token> tokens = lexer.scan();
+        TokenBuffer tokens = lexer.scan();
+        long scanned = System.nanoTime();
 
         Parser parser = new Parser(tokens);
         List<Stmt> statements = parser.parse();
+        if (parseStats) printParseStats(tokens.size(), scanned - start, System.nanoTime() - scanned);
         if (Reporter.errored()) return;
 
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver(engine.globals());
         resolver.resolve(statements);
         if (Reporter.errored()) return;
 
-        interpreter.interpret(statements);
+        if (optimize) statements = new Optimizer(inlineSize, inlineReport).optimize(statements);
+        if (optimize && fuse) statements = new Fuser(fusionReport).fuse(statements);
+        if (dumpAst) new AstPrinter().print(statements);
+
+        engine.interpret(statements);
+    }
+
+    // Resolves and flattens each top-level statement as soon as it is
+    // parsed, so only the tree of one statement is ever held at a time. The
+    // optimizer needs the whole program and does not run. Resolving stops at
+    // the first syntax error, though errors it found in statements before
+    // that are reported too. Returns null if there were errors.
+    private static FlatTree flatten(CharSequence source) {
+        long start = System.nanoTime();
+        TokenBuffer tokens = new Lexer(source).scan();
+        long scanning = System.nanoTime() - start;
+
+        Parser parser = new Parser(tokens);
+        Resolver resolver = new Resolver(engine.globals());
+        Flattener flattener = new Flattener();
+        long parsing = 0;
+        while (parser.hasNext()) {
+            long before = System.nanoTime();
+            Stmt statement = parser.next();
+            parsing += System.nanoTime() - before;
+            if (parser.errored()) continue;
+
+            resolver.resolve(statement);
+            if (Reporter.errored()) continue;
+
+            if (dumpAst) new AstPrinter().print(Collections.singletonList(statement));
+            flattener.add(statement);
+        }
+        if (parseStats) printParseStats(tokens.size(), scanning, parsing);
+        return Reporter.errored() ? null : flattener.finish();
+    }
+
+    private static void printParseStats(int tokens, long scanning, long parsing) {
+        System.err.println(String.format("%d tokens, scanned in %.1f ms, parsed in %.1f ms",
+                    tokens, scanning / 1e6, parsing / 1e6));
     }
 }
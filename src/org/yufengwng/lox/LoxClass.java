@@ -1,44 +1,58 @@
 package org.yufengwng.lox;
 
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
 class LoxClass implements LoxCallable {
     final String name;
     final LoxClass superclass;
+
+    // Own and inherited methods, keyed by symbol. Classes cannot change
+    // once declared, so this is built up front and lookups never walk the
+    // superclass chain.
     private final Map<String, LoxFunction> methods;
+    private final LoxFunction initializer;
+    private final int arity;
+
+    final Shape emptyShape = new Shape(this);
+
+    // How many fields instances tend to end up with, so new ones can be
+    // allocated at the right size.
+    int expectedFields = 0;
 
     LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
         this.name = name;
         this.superclass = superclass;
-        this.methods = methods;
+        this.methods = new IdentityHashMap<>();
+        if (superclass != null) {
+            this.methods.putAll(superclass.methods);
+        }
+        this.methods.putAll(methods);
+        this.initializer = this.methods.get("init");
+        this.arity = initializer == null ? 0 : initializer.arity();
     }
 
     LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
-        if (superclass != null) {
-            return superclass.findMethod(name);
-        }
-        return null;
+        return methods.get(name);
+    }
+
+    void expectFields(int count) {
+        if (count > expectedFields) expectedFields = count;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, arguments);
         }
         return instance;
     }
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
-        if (initializer == null) return 0;
-        return initializer.arity();
+        return arity;
     }
 
     @Override
@@ -4,38 +4,117 @@ import java.util.List;
 
 class LoxFunction implements LoxCallable {
     private final Stmt.Function declaration;
-    private final Environment closure;
+    // The variables of enclosing functions this one uses, see
+    // Stmt.Function.captures.
+    private final Object[] upvalues;
     private final boolean isInitializer;
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    // The body run by the closure or flat engine, or null to walk the tree.
+    private final ClosureCompiler.Body body;
+
+    // The instance a method was bound to, null for functions and for
+    // methods that are still looked up through their class.
+    private final Object receiver;
+
+    LoxFunction(Stmt.Function declaration, Object[] upvalues, boolean isInitializer) {
+        this(declaration, null, upvalues, isInitializer);
+    }
+
+    LoxFunction(Stmt.Function declaration, ClosureCompiler.Body body,
+            Object[] upvalues, boolean isInitializer) {
+        this(declaration, body, upvalues, isInitializer, null);
+    }
+
+    private LoxFunction(Stmt.Function declaration, ClosureCompiler.Body body,
+            Object[] upvalues, boolean isInitializer, Object receiver) {
         this.declaration = declaration;
-        this.closure = closure;
+        this.body = body;
+        this.upvalues = upvalues;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
     }
 
+    // Only needed when a method is used as a value. Calls through
+    // 'object.method()' pass the receiver to invoke() instead.
     LoxFunction bind(LoxInstance instance) {
-        Environment env = new Environment(closure);
-        env.define("this", instance);
-        return new LoxFunction(declaration, env, isInitializer);
+        return new LoxFunction(declaration, body, upvalues, isInitializer, instance);
+    }
+
+    // Whether calling the callee runs the given declaration as is, which
+    // is what a call inlined from that declaration checks.
+    static boolean runs(Object callee, Stmt.Function declaration) {
+        if (!(callee instanceof LoxFunction)) return false;
+        LoxFunction function = (LoxFunction) callee;
+        return function.declaration == declaration && function.receiver == null;
+    }
+
+    // Whether this is a method that still needs a receiver to be called.
+    boolean isUnbound() {
+        return declaration.method && receiver == null;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment scope = new Environment(closure);
+        return invoke(interpreter, receiver, arguments);
+    }
 
-        for (int i = 0; i < declaration.params.size(); i++) {
-            scope.define(declaration.params.get(i).lexeme, arguments.get(i));
+    // Defers a call in tail position to the invoke() running the caller.
+    TailCall tailCall(List<Object> arguments, Environment frame) {
+        return new TailCall(this, receiver, arguments, frame);
+    }
+
+    TailCall tailInvoke(Object receiver, List<Object> arguments, Environment frame) {
+        return new TailCall(this, receiver, arguments, frame);
+    }
+
+    // Runs the function and then whatever calls it makes in tail position.
+    // Engines turn running out of stack into a runtime error at the call
+    // that did, which is the innermost one catching it.
+    Object invoke(Interpreter interpreter, Object receiver, List<Object> arguments) {
+        Object result = run(interpreter, receiver, arguments, null);
+        while (result instanceof TailCall) {
+            TailCall call = (TailCall) result;
+            result = call.function.run(interpreter, call.receiver, call.arguments, call.frame);
+        }
+        return result;
+    }
+
+    private Object run(Interpreter interpreter, Object receiver, List<Object> arguments,
+            Environment frame) {
+        if (body == null && interpreter.jit != null) {
+            JitCode code = interpreter.jit.enter(declaration);
+            if (code != null) {
+                Object result = code.invoke(upvalues, receiver, arguments);
+                if (isInitializer) return receiver;
+                return result;
+            }
+        }
+
+        Environment scope = frame;
+        if (scope == null || scope.upvalues != upvalues || scope.values.length != declaration.locals) {
+            scope = new Environment(upvalues, declaration.locals);
+        }
+
+        int first = 0;
+        if (declaration.method) {
+            scope.define(0, receiver);
+            first = 1;
+        }
+        boolean[] boxed = declaration.boxedParams;
+        for (int i = 0; i < boxed.length; i++) {
+            Object argument = arguments.get(i);
+            scope.define(first + i, boxed[i] ? new Cell(argument) : argument);
         }
 
-        try {
-            interpreter.executeBlock(declaration.body, scope);
-        } catch (ReturnSignal ret) {
-            if (isInitializer) return closure.fetchAt(0, "this");
-            return ret.value;
+        Object result;
+        if (body != null) {
+            result = body.run(scope);
+        } else {
+            result = interpreter.executeBody(declaration, scope);
         }
 
-        if (isInitializer) return closure.fetchAt(0, "this");
-        return null;
+        if (isInitializer) return receiver;
+        return result;
     }
 
     @Override
@@ -45,6 +124,6 @@ class LoxFunction implements LoxCallable {
 
     @Override
     public String toString() {
-        return "<fn " + declaration.name.lexeme + ">";
+        return "<fn " + declaration.name.lexeme() + ">";
     }
 }
@@ -1,33 +1,30 @@
 package org.yufengwng.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+// Field values live in a plain array laid out by the instance's shape.
+// Property sites read and write them through their InlineCache.
 class LoxInstance {
-    private final LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    Shape shape;
+    Object[] values;
 
     LoxInstance(LoxClass klass) {
-        this.klass = klass;
+        this.shape = klass.emptyShape;
+        this.values = new Object[klass.expectedFields];
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+    // Moves to a shape with one more field and stores its value.
+    void addField(Shape next, int slot, Object value) {
+        if (slot >= values.length) {
+            values = Arrays.copyOf(values, next.size);
+            shape.klass.expectFields(next.size);
         }
-
-        LoxFunction method = klass.findMethod(name.lexeme);
-        if (method != null) return method.bind(this);
-
-        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
-    }
-
-    void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        values[slot] = value;
+        shape = next;
     }
 
     @Override
     public String toString() {
-        return klass.name + " instance";
+        return shape.klass.name + " instance";
     }
 }
@@ -0,0 +1,50 @@
+package org.yufengwng.lox;
+
+// Instruction set of the bytecode VM. Operands follow the opcode as
+// big-endian unsigned shorts unless noted otherwise.
+class OpCode {
+    static final byte CONSTANT      = 0;  // constant
+    static final byte NIL           = 1;
+    static final byte TRUE          = 2;
+    static final byte FALSE         = 3;
+    static final byte POP           = 4;
+    static final byte GET_LOCAL     = 5;  // slot
+    static final byte SET_LOCAL     = 6;  // slot
+    static final byte GET_GLOBAL    = 7;  // global
+    static final byte DEFINE_GLOBAL = 8;  // global
+    static final byte SET_GLOBAL    = 9;  // global
+    static final byte GET_UPVALUE   = 10; // upvalue
+    static final byte SET_UPVALUE   = 11; // upvalue
+    static final byte GET_PROPERTY  = 12; // name constant
+    static final byte SET_PROPERTY  = 13; // name constant
+    static final byte CHECK_FIELDS  = 14;
+    static final byte GET_SUPER     = 15; // name constant
+    static final byte EQUAL         = 16;
+    static final byte NOT_EQUAL     = 17;
+    static final byte GREATER       = 18;
+    static final byte GREATER_EQUAL = 19;
+    static final byte LESS          = 20;
+    static final byte LESS_EQUAL    = 21;
+    static final byte ADD           = 22;
+    static final byte SUBTRACT      = 23;
+    static final byte MULTIPLY      = 24;
+    static final byte DIVIDE        = 25;
+    static final byte NOT           = 26;
+    static final byte NEGATE        = 27;
+    static final byte PRINT         = 28;
+    static final byte JUMP          = 29; // forward offset
+    static final byte JUMP_IF_FALSE = 30; // forward offset
+    static final byte JUMP_IF_TRUE  = 31; // forward offset
+    static final byte LOOP          = 32; // backward offset
+    static final byte CALL          = 33; // argument count byte
+    static final byte INVOKE        = 34; // name constant, argument count byte
+    static final byte SUPER_INVOKE  = 35; // name constant, argument count byte
+    static final byte CLOSURE       = 36; // function constant, then per upvalue a local flag byte and index
+    static final byte CLOSE_UPVALUE = 37;
+    static final byte RETURN        = 38;
+    static final byte CLASS         = 39; // name constant
+    static final byte INHERIT       = 40;
+    static final byte METHOD        = 41; // name constant
+    static final byte TAIL_CALL     = 42; // argument count byte
+    static final byte TAIL_INVOKE   = 43; // name constant, argument count byte
+}
@@ -0,0 +1,580 @@
+package org.yufengwng.lox;
+
+import static org.yufengwng.lox.Values.isEqual;
+import static org.yufengwng.lox.Values.isTruthy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Simplifies the resolved tree before any engine runs it. Operations on
+// literals are folded, conditions and short circuits on literals pick their
+// branch, and statements that can never run or only define a local nobody
+// uses are dropped. Folding never hides a runtime error: operations that
+// would fail are left for the engine to report.
+//
+// Calls to small global functions and methods are inlined: when the callee
+// has no upvalues and its whole body is one expression without calls, of at
+// most a given number of nodes, the call becomes that expression. The
+// arguments go to fresh slots of the caller's frame, so calls at top level,
+// which has no frame, are left alone. Inlined calls check at runtime that
+// the callee is still the function that was inlined.
+//
+// Visitors return the replacement node, or null for a statement that goes
+// away. Nodes whose children change are rebuilt with the resolver's
+// annotations copied over, except function bodies, which are updated in
+// place since functions are referenced by their classes and profiles.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    static final int DEFAULT_INLINE_SIZE = 12;
+
+    // The largest body to inline, in nodes, or -1 to inline nothing.
+    private final int inlineSize;
+    private final boolean inlineReport;
+
+    // Global functions and methods by name, mapped to null for names that
+    // are declared more than once.
+    private final Map<String, Stmt.Function> functions = new HashMap<>();
+    private final Map<String, Stmt.Function> methods = new HashMap<>();
+
+    // The function, or top-level block or loop, whose frame holds the
+    // locals of the code being optimized.
+    private Stmt.Function function = null;
+    private Stmt frame = null;
+
+    private int inlined = 0;
+
+    Optimizer(int inlineSize, boolean inlineReport) {
+        this.inlineSize = inlineSize;
+        this.inlineReport = inlineReport;
+    }
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        if (inlineSize >= 0) findCallees(statements);
+        List<Stmt> optimized = optimizeStatements(statements);
+        if (inlineReport) System.err.println(String.format("%d calls inlined", inlined));
+        return optimized;
+    }
+
+    private void findCallees(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Function) {
+                add(functions, (Stmt.Function) statement);
+            } else if (statement instanceof Stmt.Class) {
+                for (Stmt.Function method : ((Stmt.Class) statement).methods) {
+                    if (!method.name.lexeme().equals("init")) add(methods, method);
+                }
+            }
+        }
+    }
+
+    private static void add(Map<String, Stmt.Function> callees, Stmt.Function function) {
+        String name = function.name.lexeme();
+        callees.put(name, callees.containsKey(name) ? null : function);
+    }
+
+    private List<Stmt> optimizeStatements(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>();
+        for (Stmt statement : statements) {
+            if (statement == null) continue;
+            Stmt result = optimize(statement);
+            if (result == null) continue;
+            optimized.add(result);
+            if (result instanceof Stmt.Return) break;
+        }
+        return optimized;
+    }
+
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // For statements that must stay a statement, like a loop body.
+    private Stmt optimizeOrEmpty(Stmt stmt) {
+        Stmt result = optimize(stmt);
+        if (result != null) return result;
+
+        Stmt.Block empty = new Stmt.Block(new ArrayList<Stmt>());
+        empty.inline = true;
+        return empty;
+    }
+
+    private List<Expr> optimizeAll(List<Expr> expressions) {
+        List<Expr> optimized = new ArrayList<>(expressions.size());
+        for (Expr expr : expressions) {
+            optimized.add(optimize(expr));
+        }
+        return optimized;
+    }
+
+    private void optimizeBody(Stmt.Function function) {
+        Stmt.Function enclosingFunction = this.function;
+        Stmt enclosingFrame = this.frame;
+        this.function = function;
+        this.frame = null;
+
+        List<Stmt> body = optimizeStatements(function.body);
+        function.body.clear();
+        function.body.addAll(body);
+
+        this.function = enclosingFunction;
+        this.frame = enclosingFrame;
+    }
+
+    // Returns the first of the given number of new slots in the frame of
+    // the code being optimized, or -1 at top level.
+    private int allocateSlots(int count) {
+        if (function != null) {
+            function.locals += count;
+            return function.locals - count;
+        }
+        if (frame instanceof Stmt.Block) {
+            Stmt.Block block = (Stmt.Block) frame;
+            block.locals += count;
+            return block.locals - count;
+        }
+        if (frame instanceof Stmt.For) {
+            Stmt.For loop = (Stmt.For) frame;
+            loop.locals += count;
+            return loop.locals - count;
+        }
+        return -1;
+    }
+
+    // Replaces a call with the body of the callee, if it can be inlined.
+    private Expr inline(Expr call, Stmt.Function callee, int arguments, Token line) {
+        if (callee == null || callee.params.size() != arguments) return call;
+        if (callee.captures.length > 0) return call;
+
+        Expr body;
+        boolean returns = true;
+        if (callee.body.isEmpty()) {
+            body = new Expr.Literal(null);
+        } else if (callee.body.size() > 1) {
+            return call;
+        } else if (callee.body.get(0) instanceof Stmt.Return) {
+            Expr value = ((Stmt.Return) callee.body.get(0)).value;
+            body = value == null ? new Expr.Literal(null) : value;
+        } else if (callee.body.get(0) instanceof Stmt.Expression) {
+            body = ((Stmt.Expression) callee.body.get(0)).expression;
+            returns = false;
+        } else {
+            return call;
+        }
+
+        int size = size(body);
+        if (size < 0 || size > inlineSize) return call;
+        int slot = allocateSlots(callee.locals);
+        if (slot < 0) return call;
+
+        inlined += 1;
+        if (inlineReport) {
+            System.err.println(String.format("[line %d] inlined %s (%d nodes)",
+                        line.line, callee.name.lexeme(), size));
+        }
+        return new Expr.Inline(call, callee, relocate(body, slot), returns, slot);
+    }
+
+    // Counts the nodes of an expression that can be inlined, or returns -1
+    // if it has something that cannot. Bodies that call anything are left
+    // out, which also keeps recursive functions from being inlined.
+    private static int size(Expr expr) {
+        if (expr instanceof Expr.Literal) return 1;
+        if (expr instanceof Expr.This) return 1;
+        if (expr instanceof Expr.Variable) return 1;
+        if (expr instanceof Expr.Assign) return plus(1, size(((Expr.Assign) expr).value));
+        if (expr instanceof Expr.Grouping) return size(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Unary) return plus(1, size(((Expr.Unary) expr).right));
+        if (expr instanceof Expr.Get) return plus(1, size(((Expr.Get) expr).object));
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return plus(1, plus(size(binary.left), size(binary.right)));
+        }
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical) expr;
+            return plus(1, plus(size(logical.left), size(logical.right)));
+        }
+        if (expr instanceof Expr.Set) {
+            Expr.Set set = (Expr.Set) expr;
+            return plus(1, plus(size(set.object), size(set.value)));
+        }
+        return -1;
+    }
+
+    private static int plus(int a, int b) {
+        return a < 0 || b < 0 ? -1 : a + b;
+    }
+
+    // Copies an inlined body, moving the callee's locals to the caller's
+    // slots from the given one on. Nodes that learn at runtime are copied,
+    // so each call site learns on its own.
+    private static Expr relocate(Expr expr, int base) {
+        if (expr instanceof Expr.Literal) return expr;
+        if (expr instanceof Expr.This) {
+            Expr.This node = (Expr.This) expr;
+            Expr.This copy = new Expr.This(node.keyword);
+            copy.access = Access.LOCAL;
+            copy.slot = base + node.slot;
+            return copy;
+        }
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable node = (Expr.Variable) expr;
+            if (node.access != Access.LOCAL) return node;
+            Expr.Variable copy = new Expr.Variable(node.name);
+            copy.access = Access.LOCAL;
+            copy.slot = base + node.slot;
+            return copy;
+        }
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign node = (Expr.Assign) expr;
+            Expr.Assign copy = new Expr.Assign(node.name, relocate(node.value, base));
+            copy.access = node.access;
+            copy.slot = node.access == Access.LOCAL ? base + node.slot : node.slot;
+            return copy;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return new Expr.Grouping(relocate(((Expr.Grouping) expr).expression, base));
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary node = (Expr.Unary) expr;
+            return new Expr.Unary(node.operator, relocate(node.right, base));
+        }
+        if (expr instanceof Expr.Get) {
+            Expr.Get node = (Expr.Get) expr;
+            return new Expr.Get(relocate(node.object, base), node.name);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary node = (Expr.Binary) expr;
+            return new Expr.Binary(relocate(node.left, base), node.operator, relocate(node.right, base));
+        }
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical node = (Expr.Logical) expr;
+            return new Expr.Logical(relocate(node.left, base), node.operator, relocate(node.right, base));
+        }
+        Expr.Set node = (Expr.Set) expr;
+        return new Expr.Set(relocate(node.object, base), node.name, relocate(node.value, base));
+    }
+
+    // Whether evaluating the expression can neither fail nor do anything
+    // observable. Globals are left out since reading one can fail.
+    private static boolean isPure(Expr expr) {
+        if (expr instanceof Expr.Literal) return true;
+        if (expr instanceof Expr.This) return true;
+        if (expr instanceof Expr.Variable) return ((Expr.Variable) expr).access != Access.GLOBAL;
+        if (expr instanceof Expr.Grouping) return isPure(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical) expr;
+            return isPure(logical.left) && isPure(logical.right);
+        }
+        return false;
+    }
+
+    private static boolean isLiteral(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object valueOf(Expr expr) {
+        return ((Expr.Literal) expr).value;
+    }
+
+    // Returns the folded result, or null if the operation has to run.
+    private static Expr fold(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case EQ_EQ:  return new Expr.Literal(isEqual(left, right));
+            case NOT_EQ: return new Expr.Literal(!isEqual(left, right));
+            case PLUS:
+                if (left instanceof String && right instanceof String) {
+                    return new Expr.Literal((String) left + (String) right);
+                }
+                break;
+            default:
+                break;
+        }
+
+        if (!(left instanceof Double && right instanceof Double)) return null;
+        double a = (double) left;
+        double b = (double) right;
+        switch (operator.type) {
+            case PLUS:       return new Expr.Literal(a + b);
+            case MINUS:      return new Expr.Literal(a - b);
+            case STAR:       return new Expr.Literal(a * b);
+            case SLASH:      return new Expr.Literal(a / b);
+            case LESS:       return new Expr.Literal(a < b);
+            case LESS_EQ:    return new Expr.Literal(a <= b);
+            case GREATER:    return new Expr.Literal(a > b);
+            case GREATER_EQ: return new Expr.Literal(a >= b);
+            default:         return null;
+        }
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        Stmt enclosingFrame = frame;
+        if (!stmt.inline) frame = stmt;
+        List<Stmt> statements = optimizeStatements(stmt.statements);
+        frame = enclosingFrame;
+        if (statements.isEmpty()) return null;
+
+        Stmt.Block block = new Stmt.Block(statements);
+        block.locals = stmt.locals;
+        block.inline = stmt.inline;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.methods) {
+            optimizeBody(method);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (isPure(expression)) return null;
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt enclosingFrame = frame;
+        if (!stmt.inline) frame = stmt;
+        Stmt initializer = stmt.initializer == null ? null : optimize(stmt.initializer);
+        Expr condition = stmt.condition == null ? null : optimize(stmt.condition);
+        Expr increment = stmt.increment == null ? null : optimize(stmt.increment);
+        Stmt body = optimizeOrEmpty(stmt.body);
+        frame = enclosingFrame;
+
+        // The initializer still runs when the loop never does.
+        if (isLiteral(condition) && isTruthy(valueOf(condition))) condition = null;
+
+        Stmt.For loop = new Stmt.For(initializer, condition, increment, body);
+        loop.locals = stmt.locals;
+        loop.inline = stmt.inline;
+        loop.counted = stmt.counted && Resolver.isCounted(loop);
+        loop.step = stmt.step;
+        return loop;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        if (!stmt.global && stmt.uses == 0) return null;
+        optimizeBody(stmt);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (isLiteral(condition)) {
+            if (isTruthy(valueOf(condition))) return optimize(stmt.then);
+            return stmt.otherwise == null ? null : optimize(stmt.otherwise);
+        }
+
+        Stmt then = optimizeOrEmpty(stmt.then);
+        Stmt otherwise = stmt.otherwise == null ? null : optimize(stmt.otherwise);
+        return new Stmt.If(condition, then, otherwise);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitReturnBinaryStmt(Stmt.ReturnBinary stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = stmt.initializer == null ? null : optimize(stmt.initializer);
+        if (!stmt.global && stmt.uses == 0 && (initializer == null || isPure(initializer))) {
+            return null;
+        }
+        if (initializer == stmt.initializer) return stmt;
+
+        Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+        var.global = stmt.global;
+        var.slot = stmt.slot;
+        var.boxed = stmt.boxed;
+        var.uses = stmt.uses;
+        return var;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (isLiteral(condition) && !isTruthy(valueOf(condition))) return null;
+        return new Stmt.While(condition, optimizeOrEmpty(stmt.body));
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.access = expr.access;
+        assign.slot = expr.slot;
+        assign.boxed = expr.boxed;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (isLiteral(left) && isLiteral(right)) {
+            Expr folded = fold(expr.operator, valueOf(left), valueOf(right));
+            if (folded != null) return folded;
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr.Call call = new Expr.Call(optimize(expr.callee), expr.paren, optimizeAll(expr.arguments));
+        call.tail = expr.tail;
+        if (inlineSize < 0 || !(call.callee instanceof Expr.Variable)) return call;
+
+        Expr.Variable callee = (Expr.Variable) call.callee;
+        if (callee.access != Access.GLOBAL) return call;
+        return inline(call, functions.get(callee.name.lexeme()), call.arguments.size(), expr.paren);
+    }
+
+    @Override
+    public Expr visitCompareConstantExpr(Expr.CompareConstant expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitFieldUpdateExpr(Expr.FieldUpdate expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = optimize(expr.expression);
+        if (isLiteral(expression)) return expression;
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitInvokeExpr(Expr.Invoke expr) {
+        Expr.Invoke invoke = new Expr.Invoke(optimize(expr.object), expr.name, expr.paren,
+                optimizeAll(expr.arguments));
+        invoke.tail = expr.tail;
+        if (inlineSize < 0) return invoke;
+        return inline(invoke, methods.get(expr.name.lexeme()), invoke.arguments.size(), expr.paren);
+    }
+
+    @Override
+    public Expr visitIncrementExpr(Expr.Increment expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitInlineExpr(Expr.Inline expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (isLiteral(left)) {
+            boolean truthy = isTruthy(valueOf(left));
+            if (expr.operator.type == TokenType.OR) return truthy ? left : right;
+            return truthy ? right : left;
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitSuperInvokeExpr(Expr.SuperInvoke expr) {
+        Expr.SuperInvoke invoke = new Expr.SuperInvoke(expr.keyword, expr.method, expr.paren,
+                optimizeAll(expr.arguments));
+        invoke.access = expr.access;
+        invoke.slot = expr.slot;
+        invoke.thisAccess = expr.thisAccess;
+        invoke.thisSlot = expr.thisSlot;
+        return invoke;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (isLiteral(right)) {
+            Object value = valueOf(right);
+            switch (expr.operator.type) {
+                case BANG:
+                    return new Expr.Literal(!isTruthy(value));
+                case MINUS:
+                    if (value instanceof Double) return new Expr.Literal(- (double) value);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+}
@@ -3,17 +3,52 @@ package org.yufengwng.lox;
 import static org.yufengwng.lox.TokenType.*;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 class Parser {
     private static final int MAX_ARITY = 8;
 
+    // How tightly each infix operator binds, from loosest to tightest.
+    // Tokens that are not infix operators bind at NONE, which ends any
+    // expression.
+    private static final int NONE = 0;
+    private static final int ASSIGNMENT = 1;
+    private static final int LOGICAL_OR = 2;
+    private static final int LOGICAL_AND = 3;
+    private static final int EQUALITY = 4;
+    private static final int COMPARISON = 5;
+    private static final int TERM = 6;
+    private static final int FACTOR = 7;
+    private static final int UNARY = 8;
+    private static final int CALL = 9;
+
+    private static final int[] PRECEDENCE = new int[TokenType.values().length];
+
+    static {
+        PRECEDENCE[EQ.ordinal()] = ASSIGNMENT;
+        PRECEDENCE[OR.ordinal()] = LOGICAL_OR;
+        PRECEDENCE[AND.ordinal()] = LOGICAL_AND;
+        PRECEDENCE[EQ_EQ.ordinal()] = EQUALITY;
+        PRECEDENCE[NOT_EQ.ordinal()] = EQUALITY;
+        PRECEDENCE[LESS.ordinal()] = COMPARISON;
+        PRECEDENCE[LESS_EQ.ordinal()] = COMPARISON;
+        PRECEDENCE[GREATER.ordinal()] = COMPARISON;
+        PRECEDENCE[GREATER_EQ.ordinal()] = COMPARISON;
+        PRECEDENCE[PLUS.ordinal()] = TERM;
+        PRECEDENCE[MINUS.ordinal()] = TERM;
+        PRECEDENCE[STAR.ordinal()] = FACTOR;
+        PRECEDENCE[SLASH.ordinal()] = FACTOR;
+        PRECEDENCE[PAREN_L.ordinal()] = CALL;
+        PRECEDENCE[DOT.ordinal()] = CALL;
+    }
+
     @SuppressWarnings("serial")
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
+    // Read by index, making a Token only for those the tree keeps.
+    private final TokenBuffer tokens;
     private int current = 0;
+    private boolean errored = false;
 
     private enum FunctionType {
         FUNCTION, METHOD;
@@ -24,7 +59,7 @@ class Parser {
         }
     }
 
-    Parser(List<Token> tokens) {
+    Parser(TokenBuffer tokens) {
         this.tokens = tokens;
     }
 
@@ -36,6 +71,19 @@ class Parser {
         return statements;
     }
 
+    // For callers that take one top-level statement at a time.
+    boolean hasNext() {
+        return !isAtEnd();
+    }
+
+    Stmt next() {
+        return tryDeclaration();
+    }
+
+    boolean errored() {
+        return errored;
+    }
+
     private Stmt tryDeclaration() {
         try {
             if (match(CLASS)) return finishClassDeclaration();
@@ -50,7 +98,7 @@ class Parser {
 
     private Stmt.Function function(FunctionType funType) {
         Token name = consume(IDENT, "Expect " + funType + " name.");
-        consume(PAREN_L, "Expect '(' after " + funType + " name.");
+        expect(PAREN_L, "Expect '(' after " + funType + " name.");
 
         List<Token> parameters= new ArrayList<>();
         if (!check(PAREN_R)) {
@@ -62,8 +110,8 @@ class Parser {
             } while (match(COMMA));
         }
 
-        consume(PAREN_R, "Expect ')' after parameters.");
-        consume(BRACE_L, "Expect '{' before " + funType + " body.");
+        expect(PAREN_R, "Expect ')' after parameters.");
+        expect(BRACE_L, "Expect '{' before " + funType + " body.");
 
         List<Stmt> body = finishBlockStatement();
         return new Stmt.Function(name, parameters, body);
@@ -74,18 +122,18 @@ class Parser {
 
         Expr.Variable superclass = null;
         if (match(LESS)) {
-            consume(IDENT, "Expect superclass name.");
+            expect(IDENT, "Expect superclass name.");
             superclass = new Expr.Variable(previous());
         }
 
-        consume(BRACE_L, "Expect '{' before class body.");
+        expect(BRACE_L, "Expect '{' before class body.");
 
         List<Stmt.Function> methods = new ArrayList<>();
         while (!isAtEnd() && !check(BRACE_R)) {
             methods.add(function(FunctionType.METHOD));
         }
 
-        consume(BRACE_R, "Expect '}' after class body.");
+        expect(BRACE_R, "Expect '}' after class body.");
         return new Stmt.Class(name, superclass, methods);
     }
 
@@ -97,7 +145,7 @@ class Parser {
             initializer = expression();
         }
 
-        consume(SEMI, "Expect ';' after variable declaration.");
+        expect(SEMI, "Expect ';' after variable declaration.");
         return new Stmt.Var(name, initializer);
     }
 
@@ -116,12 +164,12 @@ class Parser {
         while (!isAtEnd() && !check(BRACE_R)) {
             statements.add(tryDeclaration());
         }
-        consume(BRACE_R, "Expect '}' after block.");
+        expect(BRACE_R, "Expect '}' after block.");
         return statements;
     }
 
     private Stmt finishForStatement() {
-        consume(PAREN_L, "Expect '(' after 'for'.");
+        expect(PAREN_L, "Expect '(' after 'for'.");
 
         Stmt initializer;
         if (match(SEMI)) {
@@ -136,39 +184,22 @@ class Parser {
         if (!check(SEMI)) {
             condition = expression();
         }
-        consume(SEMI, "Expect ';' after for loop condition.");
+        expect(SEMI, "Expect ';' after for loop condition.");
 
         Expr increment = null;
         if (!check(PAREN_R)) {
             increment = expression();
         }
-        consume(PAREN_R, "Expect ')' after for loop clauses.");
+        expect(PAREN_R, "Expect ')' after for loop clauses.");
 
         Stmt body = statement();
-        body = desugarForToWhile(initializer, condition, increment, body);
-
-        return body;
-    }
-
-    private Stmt desugarForToWhile(Stmt init, Expr cond, Expr incr, Stmt body) {
-        if (incr != null) {
-            body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(incr)));
-        }
-
-        if (cond == null) cond = new Expr.Literal(true);
-        body = new Stmt.While(cond, body);
-
-        if (init != null) {
-            body = new Stmt.Block(Arrays.asList(init , body));
-        }
-
-        return body;
+        return new Stmt.For(initializer, condition, increment, body);
     }
 
     private Stmt finishIfStatement() {
-        consume(PAREN_L, "Expect '(' after 'if'.");
+        expect(PAREN_L, "Expect '(' after 'if'.");
         Expr condition = expression();
-        consume(PAREN_R, "Expect ')' after if condition.");
+        expect(PAREN_R, "Expect ')' after if condition.");
 
         Stmt then = statement();
         Stmt otherwise = null;
@@ -181,7 +212,7 @@ class Parser {
 
     private Stmt finishPrintStatement() {
         Expr value = expression();
-        consume(SEMI, "Expect ';' after value.");
+        expect(SEMI, "Expect ';' after value.");
         return new Stmt.Print(value);
     }
 
@@ -191,14 +222,14 @@ class Parser {
         if (!check(SEMI)) {
             value = expression();
         }
-        consume(SEMI, "Expect ';' after return value.");
+        expect(SEMI, "Expect ';' after return value.");
         return new Stmt.Return(keyword, value);
     }
 
     private Stmt finishWhileStatement() {
-        consume(PAREN_L, "Expect '(' after 'while'.");
+        expect(PAREN_L, "Expect '(' after 'while'.");
         Expr condition = expression();
-        consume(PAREN_R, "Expect ')' after while condition.");
+        expect(PAREN_R, "Expect ')' after while condition.");
 
         Stmt body = statement();
         return new Stmt.While(condition, body);
@@ -206,130 +237,86 @@ class Parser {
 
     private Stmt expressionStatement() {
         Expr expr = expression();
-        consume(SEMI, "Expect ';' after expression.");
+        expect(SEMI, "Expect ';' after expression.");
         return new Stmt.Expression(expr);
     }
 
     private Expr expression() {
-        return assignment();
+        return parsePrecedence(ASSIGNMENT);
     }
 
-    private Expr assignment() {
-        Expr expr = logicalOr();
+    // Parses an expression whose operators bind at least as tightly as the
+    // given precedence: an operand, then each infix operator that follows
+    // and binds tightly enough, with its right operand parsed at the next
+    // higher precedence. The precedence of each operator comes from a table
+    // by token type, so an expression takes a couple of Java frames per
+    // operand instead of one per precedence level.
+    private Expr parsePrecedence(int precedence) {
+        Expr expr = prefix();
 
-        if (match(EQ)) {
-            Token equals = previous();
-            Expr value = assignment();
-
-            if (expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable) expr).name;
-                return new Expr.Assign(name, value);
-            } else if (expr instanceof Expr.Get) {
-                Expr.Get get = (Expr.Get) expr;
-                return new Expr.Set(get.object, get.name, value);
+        while (true) {
+            TokenType type = tokens.type(current);
+            int binding = PRECEDENCE[type.ordinal()];
+            if (binding < precedence) return expr;
+            skip();
+
+            switch (type) {
+                case EQ:
+                    return finishAssignment(expr);
+                case PAREN_L:
+                    expr = finishCall(expr);
+                    break;
+                case DOT: {
+                    Token name = consume(IDENT, "Expect property name after '.'.");
+                    expr = new Expr.Get(expr, name);
+                    break;
+                }
+                case OR:
+                case AND: {
+                    Token operator = previous();
+                    Expr right = parsePrecedence(binding + 1);
+                    expr = new Expr.Logical(expr, operator, right);
+                    break;
+                }
+                default: {
+                    Token operator = previous();
+                    Expr right = parsePrecedence(binding + 1);
+                    expr = new Expr.Binary(expr, operator, right);
+                    break;
+                }
             }
-
-            error(equals, "Invalid assignment target.");
         }
-
-        return expr;
     }
 
-    private Expr logicalOr() {
-        Expr expr = logicalAnd();
-
-        while (match(OR)) {
-            Token operator = previous();
-            Expr right = logicalAnd();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr logicalAnd() {
-        Expr expr = equality();
-
-        while (match(AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr equality() {
-        Expr expr = comparison();
-
-        while (match(EQ_EQ, NOT_EQ)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr comparison() {
-        Expr expr = addition();
-
-        while (match(LESS, LESS_EQ, GREATER, GREATER_EQ)) {
-            Token operator = previous();
-            Expr right = addition();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr addition() {
-        Expr expr = multiplication();
-
-        while (match(PLUS, MINUS)) {
-            Token operator = previous();
-            Expr right = multiplication();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr multiplication() {
-        Expr expr = unary();
-
-        while (match(STAR, SLASH)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr unary() {
-        if (match(BANG, MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
+    private Expr prefix() {
+        switch (tokens.type(current)) {
+            case BANG:
+            case MINUS: {
+                skip();
+                Token operator = previous();
+                Expr right = parsePrecedence(UNARY);
+                return new Expr.Unary(operator, right);
+            }
+            default:
+                return primary();
         }
-        return call();
     }
 
-    private Expr call() {
-        Expr expr = primary();
+    // Assignment is right-associative, and nothing binds more loosely, so
+    // the value is the rest of the expression.
+    private Expr finishAssignment(Expr expr) {
+        Token equals = previous();
+        Expr value = parsePrecedence(ASSIGNMENT);
 
-        while (true) {
-            if (match(PAREN_L)) {
-                expr = finishCall(expr);
-            } else if (match(DOT)) {
-                Token name = consume(IDENT, "Expect property name after '.'.");
-                expr = new Expr.Get(expr, name);
-            } else {
-                break;
-            }
+        if (expr instanceof Expr.Variable) {
+            Token name = ((Expr.Variable) expr).name;
+            return new Expr.Assign(name, value);
+        } else if (expr instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr;
+            return new Expr.Set(get.object, get.name, value);
         }
 
+        error(equals, "Invalid assignment target.");
         return expr;
     }
 
@@ -344,69 +331,84 @@ class Parser {
             } while (match(COMMA));
         }
         Token paren = consume(PAREN_R, "Expect ')' after arguments.");
-        return new Expr.Call(callee, paren, arguments);
-    }
-
-    private Expr primary() {
-        if (match(NIL))   return new Expr.Literal(null);
-        if (match(TRUE))  return new Expr.Literal(true);
-        if (match(FALSE)) return new Expr.Literal(false);
 
-        if (match(NUM, STR)) {
-            return new Expr.Literal(previous().literal);
+        if (callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) callee;
+            return new Expr.Invoke(get.object, get.name, paren, arguments);
         }
-
-        if (match(SUPER)) {
-            Token keyword = previous();
-            consume(DOT, "Expect '.' after 'super'.");
-            Token method = consume(IDENT, "Expect superclass method name.");
-            return new Expr.Super(keyword, method);
-        }
-
-        if (match(THIS)) {
-            return new Expr.This(previous());
-        }
-
-        if (match(IDENT)) {
-            return new Expr.Variable(previous());
+        if (callee instanceof Expr.Super) {
+            Expr.Super sup = (Expr.Super) callee;
+            return new Expr.SuperInvoke(sup.keyword, sup.method, paren, arguments);
         }
+        return new Expr.Call(callee, paren, arguments);
+    }
 
-        if (match(PAREN_L)) {
-            Expr expr = expression();
-            consume(PAREN_R, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
+    private Expr primary() {
+        TokenType type = tokens.type(current);
+        switch (type) {
+            case NIL:
+            case TRUE:
+            case FALSE:
+            case NUM:
+            case STR:
+            case SUPER:
+            case THIS:
+            case IDENT:
+            case PAREN_L:
+                skip();
+                break;
+            default:
+                throw error(peek(), "Expect expression.");
+        }
+
+        switch (type) {
+            case NIL:   return new Expr.Literal(null);
+            case TRUE:  return new Expr.Literal(true);
+            case FALSE: return new Expr.Literal(false);
+            case NUM:
+            case STR:   return new Expr.Literal(tokens.literal(current - 1));
+            case SUPER: {
+                Token keyword = previous();
+                expect(DOT, "Expect '.' after 'super'.");
+                Token method = consume(IDENT, "Expect superclass method name.");
+                return new Expr.Super(keyword, method);
+            }
+            case THIS:  return new Expr.This(previous());
+            case IDENT: return new Expr.Variable(previous());
+            default: {
+                Expr expr = expression();
+                expect(PAREN_R, "Expect ')' after expression.");
+                return new Expr.Grouping(expr);
+            }
         }
-
-        throw error(peek(), "Expect expression.");
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.type(current) == EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
     private boolean check(TokenType type) {
-        return !isAtEnd() && peek().type == type;
+        return !isAtEnd() && tokens.type(current) == type;
     }
 
-    private Token advance() {
+    private void skip() {
         if (!isAtEnd()) {
             current += 1;
         }
-        return previous();
     }
 
     private boolean match(TokenType... types) {
         for (TokenType type : types) {
             if (check(type)) {
-                advance();
+                skip();
                 return true;
             }
         }
@@ -414,23 +416,28 @@ class Parser {
     }
 
     private Token consume(TokenType type, String message) {
-        if (check(type)) {
-            return advance();
-        }
-        throw error(peek(), message);
+        expect(type, message);
+        return previous();
+    }
+
+    // Like consume(), for a token the tree does not keep.
+    private void expect(TokenType type, String message) {
+        if (!check(type)) throw error(peek(), message);
+        skip();
     }
 
     private ParseError error(Token token, String message) {
         Reporter.error(token, message);
+        errored = true;
         return new ParseError();
     }
 
     // Synchronize parsing on statement boundaries.
     private void synchronize() {
-        advance();
+        skip();
         while (!isAtEnd()) {
-            if (previous().type == SEMI) return;
-            switch (peek().type) {
+            if (tokens.type(current - 1) == SEMI) return;
+            switch (tokens.type(current)) {
                 case CLASS:
                 case FOR:
                 case FUN:
@@ -441,7 +448,7 @@ class Parser {
                 case WHILE:
                     return;
             }
-            advance();
+            skip();
         }
     }
 }
@@ -25,13 +25,13 @@ class Reporter {
         if (token.type == TokenType.EOF) {
             report(token.line, " at end", message);
         } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+            report(token.line, " at '" + token.lexeme() + "'", message);
         }
     }
 
     static void runtimeError(RuntimeError error) {
         System.err.println(String.format(
-                    "%s\n[line %d]", error.getMessage(), error.token.line));
+                    "%s\n[line %d]", error.getMessage(), error.line));
         hadRuntimeError = true;
     }
 
@@ -1,13 +1,17 @@
 package org.yufengwng.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    // Finds the 'this' that goes with a 'super'.
+    private static final Token THIS = new Token(TokenType.THIS, null, "this", 0);
+
+    private final Globals globals;
+    private final Stack<Scope> scopes = new Stack<>();
 
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
@@ -20,39 +24,180 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         NONE, CLASS, SUBCLASS;
     }
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    // A local variable and the slot it occupies in its frame.
+    private static class Local {
+        final Scope frame;
+        final int slot;
+        boolean defined = false;
+
+        // The var, fun or class statement that declared it, if any. Uses
+        // of vars and funs are counted for the optimizer.
+        Stmt declaration = null;
+
+        // The index of a parameter among its function's parameters.
+        int param = -1;
+
+        // Set while a function or class is declared, since its own body
+        // can capture it before the value is stored.
+        boolean initializing = false;
+
+        boolean captured = false;
+        boolean assigned = false;
+        final List<Expr> references = new ArrayList<>();
+
+        Local(Scope frame, int slot) {
+            this.frame = frame;
+            this.slot = slot;
+        }
+
+        void use() {
+            if (declaration instanceof Stmt.Var) {
+                ((Stmt.Var) declaration).uses += 1;
+            } else if (declaration instanceof Stmt.Function) {
+                ((Stmt.Function) declaration).uses += 1;
+            }
+        }
+
+        // A captured local changed after capture has to be shared through a
+        // cell. Others are copied into closures by value.
+        boolean needsCell() {
+            return captured && assigned;
+        }
+    }
+
+    // The names declared in a block or function. Functions and top-level
+    // blocks are frames, which get their own environment at runtime. Other
+    // scopes are inlined into the enclosing frame, which holds their
+    // variables in slots of its own.
+    private static class Scope {
+        final Map<String, Local> names = new HashMap<>();
+        final Scope enclosing;
+        final Scope frame;
+        int slots = 0;
+
+        // For the frame of a function, the function and what it captures
+        // from the frames around it.
+        final Stmt.Function function;
+        final List<Integer> captures = new ArrayList<>();
+        final Map<Local, Integer> upvalues = new HashMap<>();
+
+        Scope(Scope enclosing, Stmt.Function function) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.frame = function == null && enclosing != null ? enclosing.frame : this;
+        }
+    }
+
+    // Where a name resolved to, with the local it names if any.
+    private static class Location {
+        final Access access;
+        final int slot;
+        final Local local;
+
+        Location(Access access, int slot, Local local) {
+            this.access = access;
+            this.slot = slot;
+            this.local = local;
+        }
+    }
+
+    Resolver(Globals globals) {
+        this.globals = globals;
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new Scope(scopes.isEmpty() ? null : scopes.peek(), null));
     }
 
-    private void endScope() {
-        scopes.pop();
+    private void beginFunction(Stmt.Function function) {
+        scopes.push(new Scope(scopes.isEmpty() ? null : scopes.peek(), function));
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+    // Returns the number of slots the scope needs at runtime. All uses of
+    // its names have been seen by now, so this is where they get boxed.
+    private int endScope() {
+        Scope scope = scopes.pop();
+        for (Local local : scope.names.values()) {
+            if (local.needsCell()) box(local, scope);
+        }
 
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+        Stmt.Function function = scope.function;
+        if (function != null) {
+            function.captures = new int[scope.captures.size()];
+            for (int i = 0; i < function.captures.length; i++) {
+                function.captures[i] = scope.captures.get(i);
+            }
+        }
+        return scope.slots;
+    }
+
+    private void box(Local local, Scope scope) {
+        for (Expr reference : local.references) {
+            if (reference instanceof Expr.Variable) {
+                ((Expr.Variable) reference).boxed = true;
+            } else {
+                ((Expr.Assign) reference).boxed = true;
+            }
+        }
+
+        if (local.declaration instanceof Stmt.Var) {
+            ((Stmt.Var) local.declaration).boxed = true;
+        } else if (local.declaration instanceof Stmt.Function) {
+            ((Stmt.Function) local.declaration).boxed = true;
+        } else if (local.declaration instanceof Stmt.Class) {
+            ((Stmt.Class) local.declaration).boxed = true;
+        } else if (local.param >= 0) {
+            scope.function.boxedParams[local.param] = true;
+        }
+    }
+
+    private Local newLocal(Scope scope) {
+        return new Local(scope.frame, scope.frame.slots++);
+    }
+
+    // Returns the slot of the declared variable, a global slot at top level.
+    private int declare(Token name) {
+        return declare(name, null);
+    }
+
+    private int declare(Token name, Stmt declaration) {
+        if (scopes.isEmpty()) return globals.indexOf(name.lexeme());
+
+        Scope scope = scopes.peek();
+        Local local = scope.names.get(name.lexeme());
+        if (local != null) {
             Reporter.error(name, "Variable with this name already declared in this scope.");
+            return local.slot;
         }
 
-        scope.put(name.lexeme, false);
+        local = newLocal(scope);
+        local.declaration = declaration;
+        scope.names.put(name.lexeme(), local);
+        return local.slot;
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().names.get(name.lexeme()).defined = true;
+    }
+
+    private void initializing(Token name, boolean initializing) {
+        if (scopes.isEmpty()) return;
+        scopes.peek().names.get(name.lexeme()).initializing = initializing;
+    }
+
+    private Local defineSpecial(String name) {
+        Local local = newLocal(scopes.peek());
+        local.defined = true;
+        scopes.peek().names.put(name, local);
+        return local;
     }
 
     void resolve(List<Stmt> statements) {
         statements.forEach(stmt -> resolve(stmt));
     }
 
-    private void resolve(Stmt stmt) {
+    void resolve(Stmt stmt) {
         stmt.accept(this);
     }
 
@@ -64,33 +209,70 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
 
-        beginScope();
-        for (Token param : function.params) {
+        beginFunction(function);
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            function.method = true;
+            defineSpecial("this");
+        }
+        function.boxedParams = new boolean[function.params.size()];
+        for (int i = 0; i < function.params.size(); i++) {
+            Token param = function.params.get(i);
             declare(param);
             define(param);
+            Local local = scopes.peek().names.get(param.lexeme());
+            if (local.param < 0) local.param = i;
         }
         resolve(function.body);
-        endScope();
+        function.locals = endScope();
 
         currentFunction = enclosingFunction;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // Finds where a name lives for code in the innermost scope, assuming
+    // a global if no scope declares it. A local of an enclosing function
+    // becomes an upvalue of the running one.
+    private Location resolveName(Token name) {
+        Scope frame = scopes.isEmpty() ? null : scopes.peek().frame;
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                int depth = scopes.size() - 1 - i;
-                interpreter.resolve(expr, depth);
-                return;
-            }
+            Local local = scopes.get(i).names.get(name.lexeme());
+            if (local == null) continue;
+
+            local.use();
+            if (local.frame == frame) return new Location(Access.LOCAL, local.slot, local);
+            return new Location(Access.UPVALUE, capture(frame, local), local);
         }
-        // Assume global if not found.
+        return new Location(Access.GLOBAL, globals.indexOf(name.lexeme()), null);
+    }
+
+    // Returns the index of the local among the upvalues of the frame,
+    // capturing it through every function in between as needed.
+    private int capture(Scope frame, Local local) {
+        Integer index = frame.upvalues.get(local);
+        if (index != null) return index;
+
+        Scope outer = frame.enclosing.frame;
+        int from = local.frame == outer ? local.slot : -capture(outer, local) - 1;
+        local.captured = true;
+        if (local.initializing) local.assigned = true;
+
+        frame.captures.add(from);
+        frame.upvalues.put(local, frame.captures.size() - 1);
+        return frame.captures.size() - 1;
+    }
+
+    // Records a reference to a local, which needs to know if it gets boxed.
+    private Location reference(Expr expr, Token name) {
+        Location location = resolveName(name);
+        if (location.local != null) location.local.references.add(expr);
+        return location;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        stmt.inline = !scopes.isEmpty();
         beginScope();
         resolve(stmt.statements);
-        endScope();
+        stmt.locals = endScope();
         return null;
     }
 
@@ -99,30 +281,30 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        stmt.global = scopes.isEmpty();
+        stmt.slot = declare(stmt.name, stmt);
         if (stmt.superclass != null) {
             currentClass = ClassType.SUBCLASS;
             resolve(stmt.superclass);
         }
         define(stmt.name);
+        initializing(stmt.name, true);
 
         if (stmt.superclass != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            stmt.superSlot = defineSpecial("super").slot;
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
-            if (method.name.lexeme.equals("init")) {
+            if (method.name.lexeme().equals("init")) {
                 declaration = FunctionType.INITIALIZER;
             }
             resolveFunction(method, declaration);
         }
-        endScope();
 
         if (stmt.superclass != null) endScope();
+        initializing(stmt.name, false);
 
         currentClass = enclosingClass;
         return null;
@@ -134,11 +316,74 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        stmt.inline = !scopes.isEmpty();
+        beginScope();
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        if (stmt.condition != null) resolve(stmt.condition);
+        resolve(stmt.body);
+
+        // Only the increment may assign the counter, so check before it
+        // is resolved. A captured counter is boxed by then and stays generic.
+        Local counter = null;
+        if (isCounted(stmt)) {
+            counter = scopes.peek().names.get(((Stmt.Var) stmt.initializer).name.lexeme());
+            if (counter.assigned) counter = null;
+        }
+
+        if (stmt.increment != null) resolve(stmt.increment);
+        stmt.locals = endScope();
+
+        if (counter != null && !((Stmt.Var) stmt.initializer).boxed) {
+            Expr.Binary step = (Expr.Binary) ((Expr.Assign) stmt.increment).value;
+            double by = (double) ((Expr.Literal) step.right).value;
+            stmt.counted = true;
+            stmt.step = step.operator.type == TokenType.MINUS ? -by : by;
+        }
+        return null;
+    }
+
+    // Whether a loop looks like 'for (var i = a; i < n; i = i + 1)': it
+    // compares its var to a limit and adds or subtracts a number literal.
+    static boolean isCounted(Stmt.For loop) {
+        if (!(loop.initializer instanceof Stmt.Var)) return false;
+        if (!(loop.condition instanceof Expr.Binary)) return false;
+        if (!(loop.increment instanceof Expr.Assign)) return false;
+
+        String name = ((Stmt.Var) loop.initializer).name.lexeme();
+        Expr.Binary condition = (Expr.Binary) loop.condition;
+        switch (condition.operator.type) {
+            case LESS: case LESS_EQ: case GREATER: case GREATER_EQ:
+                break;
+            default:
+                return false;
+        }
+        if (!isVariable(condition.left, name)) return false;
+
+        Expr.Assign increment = (Expr.Assign) loop.increment;
+        if (!increment.name.lexeme().equals(name)) return false;
+        if (!(increment.value instanceof Expr.Binary)) return false;
+        Expr.Binary step = (Expr.Binary) increment.value;
+        TokenType op = step.operator.type;
+        return (op == TokenType.PLUS || op == TokenType.MINUS)
+            && isVariable(step.left, name)
+            && step.right instanceof Expr.Literal
+            && ((Expr.Literal) step.right).value instanceof Double;
+    }
+
+    private static boolean isVariable(Expr expr, String name) {
+        return expr instanceof Expr.Variable && ((Expr.Variable) expr).name.lexeme().equals(name);
+    }
+
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        stmt.global = scopes.isEmpty();
+        stmt.slot = declare(stmt.name, stmt);
         define(stmt.name);
+        initializing(stmt.name, true);
         resolveFunction(stmt, FunctionType.FUNCTION);
+        initializing(stmt.name, false);
         return null;
     }
 
@@ -164,15 +409,36 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         if (stmt.value != null) {
             if (currentFunction == FunctionType.INITIALIZER) {
                 Reporter.error(stmt.keyword, "Cannot return a value from an initializer.");
+            } else {
+                markTailCalls(stmt.value);
             }
             resolve(stmt.value);
         }
         return null;
     }
 
+    // Marks the calls whose value is the value of a return statement.
+    private static void markTailCalls(Expr expr) {
+        if (expr instanceof Expr.Call) {
+            ((Expr.Call) expr).tail = true;
+        } else if (expr instanceof Expr.Invoke) {
+            ((Expr.Invoke) expr).tail = true;
+        } else if (expr instanceof Expr.Grouping) {
+            markTailCalls(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Logical) {
+            markTailCalls(((Expr.Logical) expr).right);
+        }
+    }
+
+    @Override
+    public Void visitReturnBinaryStmt(Stmt.ReturnBinary stmt) {
+        throw new IllegalStateException("Nodes are fused after resolving.");
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        stmt.global = scopes.isEmpty();
+        stmt.slot = declare(stmt.name, stmt);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -190,7 +456,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        Location location = reference(expr, expr.name);
+        if (location.local != null) location.local.assigned = true;
+        expr.access = location.access;
+        expr.slot = location.slot;
         return null;
     }
 
@@ -210,6 +479,16 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitCompareConstantExpr(Expr.CompareConstant expr) {
+        throw new IllegalStateException("Nodes are fused after resolving.");
+    }
+
+    @Override
+    public Void visitFieldUpdateExpr(Expr.FieldUpdate expr) {
+        throw new IllegalStateException("Nodes are fused after resolving.");
+    }
+
     @Override
     public Void visitGetExpr(Expr.Get expr) {
         resolve(expr.object);
@@ -222,6 +501,25 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitIncrementExpr(Expr.Increment expr) {
+        throw new IllegalStateException("Nodes are fused after resolving.");
+    }
+
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        throw new IllegalStateException("Calls are inlined after resolving.");
+    }
+
+    @Override
+    public Void visitInvokeExpr(Expr.Invoke expr) {
+        resolve(expr.object);
+        for (Expr argument : expr.arguments) {
+            resolve(argument);
+        }
+        return null;
+    }
+
     @Override
     public Void visitLiteralExpr(Expr.Literal expr) {
         // no-op
@@ -244,13 +542,37 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitSuperExpr(Expr.Super expr) {
+        checkSuper(expr.keyword);
+        Location location = resolveName(expr.keyword);
+        expr.access = location.access;
+        expr.slot = location.slot;
+        location = resolveName(THIS);
+        expr.thisAccess = location.access;
+        expr.thisSlot = location.slot;
+        return null;
+    }
+
+    @Override
+    public Void visitSuperInvokeExpr(Expr.SuperInvoke expr) {
+        checkSuper(expr.keyword);
+        Location location = resolveName(expr.keyword);
+        expr.access = location.access;
+        expr.slot = location.slot;
+        location = resolveName(THIS);
+        expr.thisAccess = location.access;
+        expr.thisSlot = location.slot;
+        for (Expr argument : expr.arguments) {
+            resolve(argument);
+        }
+        return null;
+    }
+
+    private void checkSuper(Token keyword) {
         if (currentClass == ClassType.NONE) {
-            Reporter.error(expr.keyword, "Cannot use 'super' outside of a class.");
+            Reporter.error(keyword, "Cannot use 'super' outside of a class.");
         } else if (currentClass == ClassType.CLASS) {
-            Reporter.error(expr.keyword, "Cannot use 'super' in a class with no superclass.");
+            Reporter.error(keyword, "Cannot use 'super' in a class with no superclass.");
         }
-        resolveLocal(expr, expr.keyword);
-        return null;
     }
 
     @Override
@@ -258,7 +580,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         if (currentClass == ClassType.NONE) {
             Reporter.error(expr.keyword, "Cannot use 'this' outside of a class.");
         } else {
-            resolveLocal(expr, expr.keyword);
+            Location location = resolveName(expr.keyword);
+            expr.access = location.access;
+            expr.slot = location.slot;
         }
         return null;
     }
@@ -271,10 +595,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Reporter.error(expr.name, "Cannot read local variable in its own initializer.");
+        if (!scopes.isEmpty()) {
+            Local local = scopes.peek().names.get(expr.name.lexeme());
+            if (local != null && !local.defined) {
+                Reporter.error(expr.name, "Cannot read local variable in its own initializer.");
+            }
         }
-        resolveLocal(expr, expr.name);
+        Location location = reference(expr, expr.name);
+        expr.access = location.access;
+        expr.slot = location.slot;
         return null;
     }
 }
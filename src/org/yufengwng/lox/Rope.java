@@ -0,0 +1,54 @@
+package org.yufengwng.lox;
+
+// A long Lox string made by concatenation. Ropes from the same chain of
+// concatenations share one buffer, each seeing its own prefix of it, so the
+// newest can append in place and a loop like 's = s + piece' takes linear
+// time instead of copying the whole string every iteration. Appending to an
+// older rope copies its prefix to a buffer of its own first.
+//
+// The text is flattened into a String on demand, for printing and equality,
+// and kept. Shorter results of concatenation stay plain strings.
+final class Rope {
+    private static final int MIN_LENGTH = 256;
+
+    private final StringBuilder buffer;
+    private final int length;
+    private String flat = null;
+
+    private Rope(StringBuilder buffer) {
+        this.buffer = buffer;
+        this.length = buffer.length();
+    }
+
+    // Concatenates two Lox strings, either a String or a Rope.
+    static Object concat(Object left, Object right) {
+        if (left instanceof Rope) return ((Rope) left).append(right);
+
+        String text = (String) left;
+        if (text.length() + length(right) < MIN_LENGTH) return text + right;
+
+        StringBuilder buffer = new StringBuilder(2 * (text.length() + length(right)));
+        buffer.append(text).append(right.toString());
+        return new Rope(buffer);
+    }
+
+    private static int length(Object string) {
+        return string instanceof Rope ? ((Rope) string).length : ((String) string).length();
+    }
+
+    private Rope append(Object right) {
+        StringBuilder target = buffer;
+        if (buffer.length() != length) {
+            target = new StringBuilder(2 * (length + length(right)));
+            target.append(buffer, 0, length);
+        }
+        target.append(right.toString());
+        return new Rope(target);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) flat = buffer.substring(0, length);
+        return flat;
+    }
+}
@@ -0,0 +1,47 @@
+package org.yufengwng.lox;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// The field layout shared by instances of a class that gained the same
+// fields in the same order. Adding a field moves an instance to the next
+// shape along a transition, which is created once and then reused, so
+// instances initialized the same way end up sharing one shape.
+class Shape {
+    final LoxClass klass;
+    final int size;
+
+    // Keyed by symbol, see Symbols.
+    private final Map<String, Integer> indices;
+    private final Map<String, Shape> transitions = new IdentityHashMap<>();
+
+    // The empty shape every new instance of the class starts with.
+    Shape(LoxClass klass) {
+        this.klass = klass;
+        this.size = 0;
+        this.indices = new IdentityHashMap<>();
+    }
+
+    private Shape(Shape parent, String name) {
+        this.klass = parent.klass;
+        this.size = parent.size + 1;
+        this.indices = new IdentityHashMap<>(parent.indices);
+        this.indices.put(name, parent.size);
+    }
+
+    // Returns the slot of the field, or -1 if this shape does not have it.
+    int indexOf(String name) {
+        Integer index = indices.get(name);
+        return index == null ? -1 : index;
+    }
+
+    // Returns the shape with the field added after the existing ones.
+    Shape with(String name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            next = new Shape(this, name);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
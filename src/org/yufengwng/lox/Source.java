@@ -0,0 +1,70 @@
+package org.yufengwng.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Reads scripts without copying them onto the heap where it can. A file is
+// memory-mapped, and when it is all ASCII the lexer reads its bytes straight
+// as chars. Other files are decoded with the default charset into a buffer
+// of chars, without the byte array and String copies along the way.
+final class Source {
+    private Source() {}
+
+    static CharSequence read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (isAscii(bytes)) return new Ascii(bytes);
+            return Charset.defaultCharset().decode(bytes);
+        }
+    }
+
+    // Checks eight bytes at a time for any with the high bit set.
+    private static boolean isAscii(ByteBuffer bytes) {
+        int length = bytes.limit();
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            if ((bytes.getLong(i) & 0x8080808080808080L) != 0) return false;
+        }
+        for (; i < length; i++) {
+            if (bytes.get(i) < 0) return false;
+        }
+        return true;
+    }
+
+    private static final class Ascii implements CharSequence {
+        private final ByteBuffer bytes;
+
+        Ascii(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int length() {
+            return bytes.limit();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) bytes.get(index);
+        }
+
+        // Copies the text out as a String, which is what callers want.
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            byte[] text = new byte[end - start];
+            bytes.get(start, text);
+            return new String(text, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }
+}
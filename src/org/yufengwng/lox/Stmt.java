@@ -7,10 +7,12 @@ abstract class Stmt {
         R visitBlockStmt(Block stmt);
         R visitClassStmt(Class stmt);
         R visitExpressionStmt(Expression stmt);
+        R visitForStmt(For stmt);
         R visitFunctionStmt(Function stmt);
         R visitIfStmt(If stmt);
         R visitPrintStmt(Print stmt);
         R visitReturnStmt(Return stmt);
+        R visitReturnBinaryStmt(ReturnBinary stmt);
         R visitVarStmt(Var stmt);
         R visitWhileStmt(While stmt);
     }
@@ -20,6 +22,12 @@ abstract class Stmt {
     static class Block extends Stmt {
         final List<Stmt> statements;
 
+        int locals;
+
+        // Runs in the enclosing frame, which holds its variables. Only
+        // blocks at top level get a frame of their own.
+        boolean inline;
+
         Block(List<Stmt> statements) {
             this.statements = statements;
         }
@@ -34,6 +42,13 @@ abstract class Stmt {
         final Expr.Variable superclass;
         final List<Stmt.Function> methods;
 
+        boolean global;
+        int slot;
+        boolean boxed;
+
+        // Where 'super' is kept for the methods to capture.
+        int superSlot;
+
         Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
             this.name = name;
             this.superclass = superclass;
@@ -57,11 +72,61 @@ abstract class Stmt {
         }
     }
 
+    static class For extends Stmt {
+        final Stmt initializer;
+        final Expr condition;
+        final Expr increment;
+        final Stmt body;
+
+        // The initializer's scope, kept like a block's. All iterations
+        // share the one frame.
+        int locals;
+        boolean inline;
+
+        // Counts its own var by a number each iteration, with nothing
+        // else assigning or capturing it: 'for (var i = a; i < n; i = i + 1)'.
+        // Engines keep the counter as a double and add the step directly.
+        boolean counted;
+        double step;
+
+        For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+            this.initializer = initializer;
+            this.condition = condition;
+            this.increment = increment;
+            this.body = body;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForStmt(this);
+        }
+    }
+
     static class Function extends Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
 
+        boolean global;
+        int slot;
+        boolean boxed;
+        int locals;
+
+        // Parameters that closures capture and assign, kept in a Cell.
+        boolean[] boxedParams;
+
+        // Where each upvalue comes from when the closure is created: slot
+        // n >= 0 of the frame declaring it, or upvalue -n - 1 of the
+        // function running there.
+        int[] captures;
+
+        // References to a local function, counted by the resolver.
+        int uses;
+
+        // Methods take the receiver as 'this' in slot 0, before the parameters.
+        boolean method;
+
+        final Jit.Profile profile = new Jit.Profile();
+
         Function(Token name, List<Token> params, List<Stmt> body) {
             this.name = name;
             this.params = params;
@@ -115,10 +180,33 @@ abstract class Stmt {
         }
     }
 
+    // A return of a binary operation on variables and literals, like
+    // 'return a + b', fused into one node by the Fuser.
+    static class ReturnBinary extends Stmt {
+        final Return original;
+        final Expr.Binary value;
+
+        ReturnBinary(Return original, Expr.Binary value) {
+            this.original = original;
+            this.value = value;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitReturnBinaryStmt(this);
+        }
+    }
+
     static class Var extends Stmt {
         final Token name;
         final Expr initializer;
 
+        boolean global;
+        int slot;
+        boolean boxed;
+
+        // References to a local variable, counted by the resolver.
+        int uses;
+
         Var(Token name, Expr initializer) {
             this.name = name;
             this.initializer = initializer;
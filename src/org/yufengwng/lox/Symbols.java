@@ -0,0 +1,64 @@
+package org.yufengwng.lox;
+
+// The canonical strings for names and string literals in source code. The
+// lexer looks each one up by its range of the source, so only its first
+// occurrence allocates a String. Symbols are interned by the JVM as well,
+// which makes them the same objects as equal string constants in the code,
+// so maps keyed by names can compare keys by identity.
+final class Symbols {
+    private static String[] table = new String[1024];
+    private static int count = 0;
+
+    private Symbols() {}
+
+    static String intern(CharSequence source, int start, int end) {
+        int length = end - start;
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+
+        int mask = table.length - 1;
+        int index = spread(hash) & mask;
+        for (String symbol = table[index]; symbol != null; symbol = table[index]) {
+            if (symbol.hashCode() == hash && matches(symbol, source, start, length)) {
+                return symbol;
+            }
+            index = (index + 1) & mask;
+        }
+
+        // The hash is the String's own, which it caches from here on.
+        String symbol = source.subSequence(start, end).toString().intern();
+        symbol.hashCode();
+        table[index] = symbol;
+        count += 1;
+        if (count * 2 > table.length) grow();
+        return symbol;
+    }
+
+    private static boolean matches(String symbol, CharSequence source, int start, int length) {
+        if (symbol.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (symbol.charAt(i) != source.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static void grow() {
+        String[] old = table;
+        table = new String[old.length * 2];
+        int mask = table.length - 1;
+        for (String symbol : old) {
+            if (symbol == null) continue;
+            int index = spread(symbol.hashCode()) & mask;
+            while (table[index] != null) {
+                index = (index + 1) & mask;
+            }
+            table[index] = symbol;
+        }
+    }
+}
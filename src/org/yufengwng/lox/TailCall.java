@@ -0,0 +1,23 @@
+package org.yufengwng.lox;
+
+import java.util.List;
+
+// A call in tail position, which the body making it returns instead of
+// making the call. LoxFunction.invoke() makes it once that body is done, so
+// tail calls run in constant Java stack.
+class TailCall {
+    final LoxFunction function;
+    final Object receiver;
+    final List<Object> arguments;
+
+    // The frame of the body that made the call, or null if it has none.
+    // Closures never keep frames alive, so the callee may take it over.
+    final Environment frame;
+
+    TailCall(LoxFunction function, Object receiver, List<Object> arguments, Environment frame) {
+        this.function = function;
+        this.receiver = receiver;
+        this.arguments = arguments;
+        this.frame = frame;
+    }
+}
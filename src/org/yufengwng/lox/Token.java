@@ -3,24 +3,47 @@ package org.yufengwng.lox;
 class Token {
     final TokenType type;
     final Object literal;
-    final String lexeme;
     final int line;
 
+    // Tokens from the lexer keep where they are in the source, and cut
+    // their lexeme from it only when first asked for.
+    private String lexeme;
+    private final CharSequence source;
+    private final int start;
+    private final int end;
+
     Token(TokenType type, Object literal, String lexeme, int line) {
+        this(type, literal, lexeme, null, 0, 0, line);
+    }
+
+    Token(TokenType type, Object literal, CharSequence source, int start, int end, int line) {
+        this(type, literal, null, source, start, end, line);
+    }
+
+    private Token(TokenType type, Object literal, String lexeme,
+            CharSequence source, int start, int end, int line) {
         this.type = type;
         this.literal = literal;
         this.lexeme = lexeme;
+        this.source = source;
+        this.start = start;
+        this.end = end;
         this.line = line;
     }
 
+    String lexeme() {
+        if (lexeme == null) lexeme = source.subSequence(start, end).toString();
+        return lexeme;
+    }
+
     @Override
     public String toString() {
         return String.format("Token{type=%s,literal=%s,lexeme=%s,line=%d}",
-                type, literal, lexeme, line);
+                type, literal, lexeme(), line);
     }
 
     // Get a string representation that satisfies original lox expectations.
     public String toDisplay() {
-        return String.format("%s %s %s", type.toDisplay(), lexeme, literal);
+        return String.format("%s %s %s", type.toDisplay(), lexeme(), literal);
     }
 }
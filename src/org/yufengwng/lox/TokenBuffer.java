@@ -0,0 +1,74 @@
+package org.yufengwng.lox;
+
+import java.util.Arrays;
+
+// The tokens of a source, kept in parallel arrays instead of one object
+// each. The parser reads types and lines by index, and makes a Token only
+// for the ones it keeps in the tree or reports an error at.
+//
+// The side table holds what a token carries besides its position: the
+// value of a number or string literal, or the symbol of a name or keyword.
+final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final CharSequence source;
+    private int[] types;
+    private int[] starts;
+    private int[] ends;
+    private int[] lines;
+    private Object[] values;
+    private int size = 0;
+
+    // Sized for a token every few characters, so typical code never grows.
+    TokenBuffer(CharSequence source) {
+        this.source = source;
+        int capacity = source.length() / 3 + 16;
+        this.types = new int[capacity];
+        this.starts = new int[capacity];
+        this.ends = new int[capacity];
+        this.lines = new int[capacity];
+        this.values = new Object[capacity];
+    }
+
+    void add(TokenType type, int start, int end, int line, Object value) {
+        if (size == types.length) {
+            int capacity = size + size / 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        types[size] = type.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        lines[size] = line;
+        values[size] = value;
+        size += 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    // The value of a number or string literal.
+    Object literal(int index) {
+        return values[index];
+    }
+
+    Token token(int index) {
+        TokenType type = type(index);
+        Object value = values[index];
+        if (type == TokenType.NUM || type == TokenType.STR) {
+            return new Token(type, value, source, starts[index], ends[index], lines[index]);
+        }
+        if (value != null) {
+            return new Token(type, null, (String) value, lines[index]);
+        }
+        return new Token(type, null, source, starts[index], ends[index], lines[index]);
+    }
+}
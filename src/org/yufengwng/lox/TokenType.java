@@ -1,8 +1,5 @@
 package org.yufengwng.lox;
 
-import java.util.HashMap;
-import java.util.Map;
-
 enum TokenType {
     // Literals.
     IDENT, STR, NUM, TRUE, FALSE, NIL,
@@ -25,28 +22,6 @@ enum TokenType {
     // Marker.
     EOF;
 
-    static final Map<String, TokenType> KEYWORDS;
-
-    static {
-        KEYWORDS = new HashMap<>();
-        KEYWORDS.put("and",    AND);
-        KEYWORDS.put("class",  CLASS);
-        KEYWORDS.put("else",   ELSE);
-        KEYWORDS.put("false",  FALSE);
-        KEYWORDS.put("for",    FOR);
-        KEYWORDS.put("fun",    FUN);
-        KEYWORDS.put("if",     IF);
-        KEYWORDS.put("nil",    NIL);
-        KEYWORDS.put("or",     OR);
-        KEYWORDS.put("print",  PRINT);
-        KEYWORDS.put("return", RETURN);
-        KEYWORDS.put("super",  SUPER);
-        KEYWORDS.put("this",   THIS);
-        KEYWORDS.put("true",   TRUE);
-        KEYWORDS.put("var",    VAR);
-        KEYWORDS.put("while",  WHILE);
-    }
-
     // Get a string representation that satisfies original lox expectations.
     String toDisplay() {
         String name = this.name();
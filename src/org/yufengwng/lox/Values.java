@@ -0,0 +1,56 @@
+package org.yufengwng.lox;
+
+// Semantics of Lox values shared by every execution engine.
+class Values {
+
+    static boolean isEqual(Object a, Object b) {
+        // Identical values, such as interned names and literals, are equal
+        // without further checks.
+        if (a == b) return true;
+        if (a instanceof Rope) a = a.toString();
+        if (b instanceof Rope) b = b.toString();
+        if (a == null && b == null) return true;
+        if (a == null)              return false;
+        return a.equals(b);
+    }
+
+    // Strings are a String, or a Rope when made by concatenation.
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    static boolean isTruthy(Object value) {
+        if (value == null)              return false;
+        if (value instanceof Boolean)   return (boolean) value;
+        return true;
+    }
+
+    // Compares numbers by one of the comparison operators.
+    static boolean compare(TokenType operator, double a, double b) {
+        switch (operator) {
+            case LESS:          return a < b;
+            case LESS_EQ:       return a <= b;
+            case GREATER:       return a > b;
+            case GREATER_EQ:    return a >= b;
+            default:            throw new IllegalStateException("Unhandled comparison " + operator + ".");
+        }
+    }
+
+    static String stringify(Object value) {
+        if (value == null) return "nil";
+
+        if (value instanceof Double) {
+            return prettifyNumber((Double) value);
+        }
+
+        return value.toString();
+    }
+
+    private static String prettifyNumber(Double value) {
+        String text = value.toString();
+        if (text.endsWith(".0")) {
+            text = text.substring(0, text.length() - 2);
+        }
+        return text;
+    }
+}
@@ -0,0 +1,637 @@
+package org.yufengwng.lox;
+
+import static org.yufengwng.lox.Values.isEqual;
+import static org.yufengwng.lox.Values.isString;
+import static org.yufengwng.lox.Values.isTruthy;
+import static org.yufengwng.lox.Values.stringify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A stack-based virtual machine that runs bytecode from the Compiler.
+class Vm implements Engine {
+    private static final int MAX_FRAMES = 16384;
+
+    private final Globals globals = new Globals();
+
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+
+    // Upvalues still pointing into the stack, sorted by descending slot.
+    private VmUpvalue openUpvalues = null;
+
+    private static class CallFrame {
+        VmClosure closure;
+        int ip;
+        int base;
+    }
+
+    Vm() {
+        globals.define(NativeClock.NAME, new NativeClock());
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new CallFrame();
+        }
+    }
+
+    @Override
+    public Globals globals() {
+        return globals;
+    }
+
+    @Override
+    public void interpret(List<Stmt> statements) {
+        VmFunction script = new Compiler().compile(statements);
+        if (Reporter.errored()) return;
+        VmClosure closure = new VmClosure(script);
+        try {
+            stack[sp++] = closure;
+            call(closure, 0);
+            run();
+        } catch (RuntimeError error) {
+            Reporter.runtimeError(error);
+        } finally {
+            Arrays.fill(stack, 0, sp, null);
+            sp = 0;
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+        int base = frame.base;
+
+        while (true) {
+            switch (code[ip++]) {
+                case OpCode.CONSTANT: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    stack[sp++] = constants[index];
+                    break;
+                }
+                case OpCode.NIL:   stack[sp++] = null; break;
+                case OpCode.TRUE:  stack[sp++] = true; break;
+                case OpCode.FALSE: stack[sp++] = false; break;
+                case OpCode.POP:   stack[--sp] = null; break;
+
+                case OpCode.GET_LOCAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    stack[sp++] = stack[base + slot];
+                    break;
+                }
+                case OpCode.SET_LOCAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    stack[base + slot] = stack[sp - 1];
+                    break;
+                }
+                case OpCode.GET_GLOBAL: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    Object value = globals.get(index);
+                    if (value == Globals.UNDEFINED) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" + globals.nameOf(index) + "'.");
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    globals.set(index, stack[--sp]);
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (globals.get(index) == Globals.UNDEFINED) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" + globals.nameOf(index) + "'.");
+                    }
+                    globals.set(index, stack[sp - 1]);
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    VmUpvalue upvalue = frame.closure.upvalues[index];
+                    stack[sp++] = upvalue.isOpen ? stack[upvalue.slot] : upvalue.closed;
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    VmUpvalue upvalue = frame.closure.upvalues[index];
+                    if (upvalue.isOpen) {
+                        stack[upvalue.slot] = stack[sp - 1];
+                    } else {
+                        upvalue.closed = stack[sp - 1];
+                    }
+                    break;
+                }
+
+                case OpCode.GET_PROPERTY: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    Object object = stack[sp - 1];
+                    if (!(object instanceof VmInstance)) {
+                        frame.ip = ip;
+                        throw error("Only instances have properties.");
+                    }
+                    VmInstance instance = (VmInstance) object;
+                    Object value = instance.fields.get(name);
+                    if (value != null || instance.fields.containsKey(name)) {
+                        stack[sp - 1] = value;
+                        break;
+                    }
+                    VmClosure method = instance.klass.methods.get(name);
+                    if (method == null) {
+                        frame.ip = ip;
+                        throw error("Undefined property '" + name + "'.");
+                    }
+                    stack[sp - 1] = new VmBoundMethod(instance, method);
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    Object object = stack[sp - 2];
+                    if (!(object instanceof VmInstance)) {
+                        frame.ip = ip;
+                        throw error("Only instances have fields.");
+                    }
+                    Object value = stack[--sp];
+                    ((VmInstance) object).fields.put(name, value);
+                    stack[sp] = null;
+                    stack[sp - 1] = value;
+                    break;
+                }
+                case OpCode.CHECK_FIELDS: {
+                    if (!(stack[sp - 1] instanceof VmInstance)) {
+                        frame.ip = ip;
+                        throw error("Only instances have fields.");
+                    }
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VmClass superclass = (VmClass) stack[--sp];
+                    stack[sp] = null;
+                    VmClosure method = superclass.methods.get(name);
+                    if (method == null) {
+                        frame.ip = ip;
+                        throw error("Undefined property '" + name + "'.");
+                    }
+                    stack[sp - 1] = new VmBoundMethod(stack[sp - 1], method);
+                    break;
+                }
+
+                case OpCode.EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp] = null;
+                    stack[sp - 1] = isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case OpCode.NOT_EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp] = null;
+                    stack[sp - 1] = !isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case OpCode.GREATER: {
+                    Object a = stack[sp - 2];
+                    Object b = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operands must be numbers.");
+                    }
+                    stack[--sp] = null;
+                    stack[sp - 1] = (double) a > (double) b;
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    Object a = stack[sp - 2];
+                    Object b = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operands must be numbers.");
+                    }
+                    stack[--sp] = null;
+                    stack[sp - 1] = (double) a >= (double) b;
+                    break;
+                }
+                case OpCode.LESS: {
+                    Object a = stack[sp - 2];
+                    Object b = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operands must be numbers.");
+                    }
+                    stack[--sp] = null;
+                    stack[sp - 1] = (double) a < (double) b;
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    Object a = stack[sp - 2];
+                    Object b = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operands must be numbers.");
+                    }
+                    stack[--sp] = null;
+                    stack[sp - 1] = (double) a <= (double) b;
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object a = stack[sp - 2];
+                    Object b = stack[sp - 1];
+                    if (a instanceof Double && b instanceof Double) {
+                        stack[--sp] = null;
+                        stack[sp - 1] = (double) a + (double) b;
+                    } else if (isString(a) && isString(b)) {
+                        stack[--sp] = null;
+                        stack[sp - 1] = Rope.concat(a, b);
+                    } else {
+                        frame.ip = ip;
+                        throw error("Operands must be two numbers or two strings.");
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    Object a = stack[sp - 2];
+                    Object b = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operands must be numbers.");
+                    }
+                    stack[--sp] = null;
+                    stack[sp - 1] = (double) a - (double) b;
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    Object a = stack[sp - 2];
+                    Object b = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operands must be numbers.");
+                    }
+                    stack[--sp] = null;
+                    stack[sp - 1] = (double) a * (double) b;
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    Object a = stack[sp - 2];
+                    Object b = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operands must be numbers.");
+                    }
+                    stack[--sp] = null;
+                    stack[sp - 1] = (double) a / (double) b;
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp - 1] = !isTruthy(stack[sp - 1]);
+                    break;
+                case OpCode.NEGATE: {
+                    Object value = stack[sp - 1];
+                    if (!(value instanceof Double)) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number.");
+                    }
+                    stack[sp - 1] = - (double) value;
+                    break;
+                }
+
+                case OpCode.PRINT:
+                    System.out.println(stringify(stack[--sp]));
+                    stack[sp] = null;
+                    break;
+
+                case OpCode.JUMP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 + offset;
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSE: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (!isTruthy(stack[sp - 1])) ip += offset;
+                    break;
+                }
+                case OpCode.JUMP_IF_TRUE: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (isTruthy(stack[sp - 1])) ip += offset;
+                    break;
+                }
+                case OpCode.LOOP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 - offset;
+                    break;
+                }
+
+                case OpCode.CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    callValue(stack[sp - argCount - 1], argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.TAIL_CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    int callers = frameCount;
+                    callValue(stack[sp - argCount - 1], argCount);
+                    reuseFrame(callers);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.TAIL_INVOKE: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    int callers = frameCount;
+                    invoke(name, argCount);
+                    reuseFrame(callers);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.INVOKE: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    invoke(name, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.SUPER_INVOKE: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    VmClass superclass = (VmClass) stack[--sp];
+                    stack[sp] = null;
+                    VmClosure method = superclass.methods.get(name);
+                    if (method == null) {
+                        throw error("Undefined property '" + name + "'.");
+                    }
+                    call(method, argCount);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    VmFunction function = (VmFunction) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VmClosure closure = new VmClosure(function);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip] != 0;
+                        int index = ((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff);
+                        ip += 3;
+                        if (isLocal) {
+                            closure.upvalues[i] = captureUpvalue(base + index);
+                        } else {
+                            closure.upvalues[i] = frame.closure.upvalues[index];
+                        }
+                    }
+                    stack[sp++] = closure;
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    stack[--sp] = null;
+                    break;
+                case OpCode.RETURN: {
+                    Object result = stack[sp - 1];
+                    closeUpvalues(base);
+                    Arrays.fill(stack, base, sp, null);
+                    frameCount -= 1;
+                    if (frameCount == 0) {
+                        sp = 0;
+                        return;
+                    }
+                    sp = base;
+                    stack[sp++] = result;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+
+                case OpCode.CLASS: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    stack[sp++] = new VmClass(name);
+                    break;
+                }
+                case OpCode.INHERIT: {
+                    Object superclass = stack[sp - 2];
+                    if (!(superclass instanceof VmClass)) {
+                        frame.ip = ip;
+                        throw error("Superclass must be a class.");
+                    }
+                    VmClass subclass = (VmClass) stack[sp - 1];
+                    subclass.methods.putAll(((VmClass) superclass).methods);
+                    subclass.initializer = ((VmClass) superclass).initializer;
+                    break;
+                }
+                case OpCode.METHOD: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VmClosure method = (VmClosure) stack[--sp];
+                    stack[sp] = null;
+                    VmClass klass = (VmClass) stack[sp - 1];
+                    klass.methods.put(name, method);
+                    if (name.equals("init")) klass.initializer = method;
+                    break;
+                }
+
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[ip - 1] + ".");
+            }
+        }
+    }
+
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof VmClosure) {
+            call((VmClosure) callee, argCount);
+            return;
+        }
+
+        if (callee instanceof VmBoundMethod) {
+            VmBoundMethod bound = (VmBoundMethod) callee;
+            stack[sp - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+            return;
+        }
+
+        if (callee instanceof VmClass) {
+            VmClass klass = (VmClass) callee;
+            stack[sp - argCount - 1] = new VmInstance(klass);
+            if (klass.initializer != null) {
+                call(klass.initializer, argCount);
+            } else if (argCount != 0) {
+                throw error("Expected 0 arguments but got " + argCount + ".");
+            }
+            return;
+        }
+
+        if (callee instanceof LoxCallable) {
+            LoxCallable function = (LoxCallable) callee;
+            if (argCount != function.arity()) {
+                throw error("Expected " + function.arity() + " arguments but got " + argCount + ".");
+            }
+            List<Object> arguments = new ArrayList<>(argCount);
+            for (int i = sp - argCount; i < sp; i++) {
+                arguments.add(stack[i]);
+            }
+            Object result = function.call(null, arguments);
+            Arrays.fill(stack, sp - argCount - 1, sp, null);
+            sp -= argCount + 1;
+            stack[sp++] = result;
+            return;
+        }
+
+        throw error("Can only call functions and classes.");
+    }
+
+    private void invoke(String name, int argCount) {
+        Object receiver = stack[sp - argCount - 1];
+        if (!(receiver instanceof VmInstance)) {
+            throw error("Only instances have properties.");
+        }
+
+        VmInstance instance = (VmInstance) receiver;
+        Object field = instance.fields.get(name);
+        if (field != null || instance.fields.containsKey(name)) {
+            stack[sp - argCount - 1] = field;
+            callValue(field, argCount);
+            return;
+        }
+
+        VmClosure method = instance.klass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        call(method, argCount);
+    }
+
+    // After a call in tail position, lets a callee that got a frame take
+    // over the caller's frame and stack window, so tail calls run in
+    // constant space. Natives have already left their result in place for
+    // the return that follows the call.
+    private void reuseFrame(int callers) {
+        if (frameCount == callers) return;
+
+        CallFrame caller = frames[callers - 1];
+        CallFrame callee = frames[frameCount - 1];
+        closeUpvalues(caller.base);
+        int size = sp - callee.base;
+        System.arraycopy(stack, callee.base, stack, caller.base, size);
+        Arrays.fill(stack, caller.base + size, sp, null);
+        sp = caller.base + size;
+
+        caller.closure = callee.closure;
+        caller.ip = callee.ip;
+        frameCount -= 1;
+    }
+
+    private void call(VmClosure closure, int argCount) {
+        VmFunction function = closure.function;
+        if (argCount != function.arity) {
+            throw error("Expected " + function.arity + " arguments but got " + argCount + ".");
+        }
+        if (frameCount == MAX_FRAMES) {
+            throw error("Stack overflow.");
+        }
+
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+            for (int i = frameCount; i < frames.length; i++) {
+                frames[i] = new CallFrame();
+            }
+        }
+
+        int base = sp - argCount - 1;
+        if (base + function.maxStack > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + function.maxStack));
+        }
+
+        CallFrame frame = frames[frameCount++];
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+    }
+
+    private VmUpvalue captureUpvalue(int slot) {
+        VmUpvalue previous = null;
+        VmUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.slot == slot) {
+            return upvalue;
+        }
+
+        VmUpvalue created = new VmUpvalue(slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int lastSlot) {
+        while (openUpvalues != null && openUpvalues.slot >= lastSlot) {
+            VmUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.isOpen = false;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    // Reports against the line of the instruction the current frame is on.
+    private RuntimeError error(String message) {
+        CallFrame frame = frames[frameCount - 1];
+        int line = frame.closure.function.chunk.lines[frame.ip - 1];
+        return new RuntimeError(line, message);
+    }
+}
@@ -0,0 +1,21 @@
+package org.yufengwng.lox;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+class VmClass {
+    final String name;
+    // Keyed by symbol, see Symbols.
+    final Map<String, VmClosure> methods = new IdentityHashMap<>();
+
+    VmClosure initializer;
+
+    VmClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,22 @@
+package org.yufengwng.lox;
+
+// A compiled function body, shared by every closure created from it.
+class VmFunction {
+    final String name;
+    final int arity;
+    final Chunk chunk = new Chunk();
+
+    int upvalueCount = 0;
+    int maxStack = 0;
+
+    VmFunction(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return "<fn " + name + ">";
+    }
+}
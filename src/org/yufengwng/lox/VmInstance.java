@@ -0,0 +1,19 @@
+package org.yufengwng.lox;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+class VmInstance {
+    final VmClass klass;
+    // Keyed by symbol, see Symbols.
+    final Map<String, Object> fields = new IdentityHashMap<>();
+
+    VmInstance(VmClass klass) {
+        this.klass = klass;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
@@ -0,0 +1,15 @@
+package org.yufengwng.lox;
+
+// A variable captured by a closure. It refers to a stack slot while the
+// variable is in scope and holds the value itself once closed.
+class VmUpvalue {
+    final int slot;
+    Object closed;
+    boolean isOpen = true;
+    VmUpvalue next;
+
+    VmUpvalue(int slot, VmUpvalue next) {
+        this.slot = slot;
+        this.next = next;
+    }
+}
@@ -29,6 +29,7 @@ expectations = 0
 
 interpreter = None
 filter_paths = None
+jlox_flags = []
 
 
 class Interpreter:
@@ -53,11 +54,8 @@ def init_interpreter():
         TEST_DIR + '/limit/too_many_constants.lox': 'skip',
         TEST_DIR + '/limit/too_many_locals.lox': 'skip',
         TEST_DIR + '/limit/too_many_upvalues.lox': 'skip',
-
-        # Rely on JVM for stack overflow checking.
-        TEST_DIR + '/limit/stack_overflow.lox': 'skip',
     }
-    args = [join(REPO_DIR, 'jlox')]
+    args = [join(REPO_DIR, 'jlox')] + jlox_flags
     jlox = Interpreter('jlox', 'java', args, tests)
     return jlox
 
@@ -397,9 +395,14 @@ def run_suite():
 
 def main(argv):
     global filter_paths
+    global jlox_flags
+
+    # Flags like --engine=vm are passed through to the interpreter.
+    jlox_flags = [arg for arg in argv[1:] if arg.startswith('--')]
+    argv = [arg for arg in argv if not arg.startswith('--')]
 
     if len(argv) < 1 or len(argv) > 2:
-        print('Usage: test.py [filters]')
+        print('Usage: test.py [--flags] [filters]')
         sys.exit(1)
 
     if len(argv) == 2: